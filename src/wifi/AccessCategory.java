@@ -0,0 +1,122 @@
+package wifi;
+
+/**
+ * The four EDCA access categories data can be sent under, from background up
+ * to voice, and the contention parameters that go with each. Higher
+ * categories wait a shorter AIFS and draw their backoff from a smaller
+ * contention window, so they win the channel first; lower ones get to hold
+ * the channel for longer bursts once they have it.
+ *
+ * The parameters follow the 802.11 EDCA defaults, worked out from the RF
+ * layer's aCWmin and aCWmax, with two adaptations. AIFS is counted from
+ * DIFS, so best effort contends exactly as it did before there were
+ * categories, and no category waits less. And the RF layer's aCWmin is only
+ * 3, which the EDCA formulas would turn into a voice window of 0 to 1 slots,
+ * so two voice stations would always collide on their first try. So no
+ * window starts below MIN_CW slots, and none tops out below twice its
+ * minimum plus one. Video and voice then differ from best effort in CWmax
+ * and TXOP, and background in AIFS alone. TXOP limits are counted in frames
+ * per channel access rather than microseconds, since the RF layer can't tell
+ * us a frame's airtime before we send it.
+ */
+public final class AccessCategory {
+
+	// Categories, in increasing priority
+	public static final int AC_BK = 0; // Background
+	public static final int AC_BE = 1; // Best effort, the default
+	public static final int AC_VI = 2; // Video
+	public static final int AC_VO = 3; // Voice
+	public static final int COUNT = 4;
+
+	private static final String[] NAMES = { "background", "best effort",
+		"video", "voice" };
+
+	// Slots each category's AIFS is longer than DIFS. Best effort, which
+	// plain send() uses, waits exactly DIFS like stations without EDCA.
+	// Background keeps its 802.11 default 4 slots behind best effort. Video
+	// and voice can't go a slot ahead of it the way they do by default, as
+	// that would be PIFS, which beacons use.
+	private static final int[] AIFS_SLOTS_PAST_DIFS = { 4, 0, 0, 0 };
+	// Smallest CWmin any category gets, in slots
+	private static final long MIN_CW = 3;
+	// Contention window bounds, in slots
+	private static final long[] CW_MIN = { 
+		cwMinOf(NSyncClock.CW_MIN), cwMinOf(NSyncClock.CW_MIN),
+		cwMinOf((NSyncClock.CW_MIN + 1) / 2 - 1), 
+		cwMinOf((NSyncClock.CW_MIN + 1) / 4 - 1) };
+	private static final long[] CW_MAX = { 
+		cwMaxOf(NSyncClock.CW_MAX, CW_MIN[AC_BK]), 
+		cwMaxOf(NSyncClock.CW_MAX, CW_MIN[AC_BE]),
+		cwMaxOf(NSyncClock.CW_MIN, CW_MIN[AC_VI]), 
+		cwMaxOf((NSyncClock.CW_MIN + 1) / 2 - 1, CW_MIN[AC_VO]) };
+	// Most frames one channel access may carry
+	private static final int[] TXOP_FRAMES = { 16, 16, 4, 2 };
+
+	private AccessCategory() {
+	}
+
+	/**
+	 * @param derived A CWmin from the EDCA formulas
+	 * @return The CWmin to use
+	 */
+	private static long cwMinOf(long derived) {
+		return Math.max(derived, MIN_CW);
+	}
+
+	/**
+	 * @param derived A CWmax from the EDCA formulas
+	 * @param cwMin The category's CWmin
+	 * @return The CWmax to use, leaving room for at least one doubling
+	 */
+	private static long cwMaxOf(long derived, long cwMin) {
+		return Math.max(derived, 2 * cwMin + 1);
+	}
+
+	/**
+	 * @param ac An access category
+	 * @return True if it's one of the four
+	 */
+	public static boolean isValid(int ac) {
+		return ac >= AC_BK && ac <= AC_VO;
+	}
+
+	/**
+	 * @param ac An access category
+	 * @return Its arbitration inter-frame space, in clock units
+	 */
+	public static long aifs(int ac) {
+		return Packet.DIFS + AIFS_SLOTS_PAST_DIFS[ac] * NSyncClock.A_SLOT_TIME;
+	}
+
+	/**
+	 * @param ac An access category
+	 * @return Its smallest contention window, in slots
+	 */
+	public static long cwMin(int ac) {
+		return CW_MIN[ac];
+	}
+
+	/**
+	 * @param ac An access category
+	 * @return Its largest contention window, in slots
+	 */
+	public static long cwMax(int ac) {
+		return CW_MAX[ac];
+	}
+
+	/**
+	 * @param ac An access category
+	 * @return Most frames it may send back to back in one channel access
+	 */
+	public static int txopFrames(int ac) {
+		return TXOP_FRAMES[ac];
+	}
+
+	/**
+	 * @param ac An access category
+	 * @return Its name, for logging
+	 */
+	public static String name(int ac) {
+		return NAMES[ac];
+	}
+}
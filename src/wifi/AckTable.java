@@ -0,0 +1,228 @@
+package wifi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records every ACK we receive in a per-peer bitmap indexed by sequence
+ * number, so SendTask can tell in constant time whether a frame has been
+ * acknowledged, however many frames it has outstanding and in whatever order
+ * their ACKs came back. RecvTask records ACKs as they arrive; SendTask clears
+ * a sequence number's bit as it hands the number out, so an ACK left over
+ * from the last time round the sequence space can't answer a new frame.
+ *
+ * A plain ACK sets its own sequence number's bit, and a block ACK every bit
+ * its bitmap covers. Fragments all share their message's sequence number, so
+ * fragment ACKs go in a separate bitmap of fragment numbers, kept for the
+ * peer's latest fragmented message.
+ *
+ * ACKs may end in a flow control byte. The table keeps the receive window
+ * each peer last advertised, and notes a frame the peer refused for want of
+ * buffer space, so SendTask can hold off instead of retrying into a full
+ * buffer. A refusal still carries a block ACK bitmap when the frame would
+ * have been answered with one.
+ */
+public class AckTable {
+
+	private static final int SEQ_SPACE = Packet.MAX_SEQ_NUM + 1;
+
+	private StationTable mStations;
+	// Each peer's ACKs, by station table slot
+	private AtomicReferenceArray<Peer> mPeers;
+
+	/**
+	 * @param stations Table to find peers' slots in
+	 */
+	public AckTable(StationTable stations) {
+		mStations = stations;
+		mPeers = new AtomicReferenceArray<Peer>(stations.capacity());
+	}
+
+	/**
+	 * Records a received ACK
+	 * @param ack The ACK
+	 */
+	public void record(Packet ack) {
+		Peer peer = getPeer(ack.getSrcAddr());
+		int seq = ack.getSequenceNumber() & Packet.MAX_SEQ_NUM;
+		int len = ack.getDataLen();
+		int flow = ack.getFlowControl();
+		boolean refused = false;
+		if(flow >= 0) {
+			len = len - Packet.FLOW_CONTROL_SIZE;
+			refused = (flow & Packet.FLOW_REFUSED) != 0;
+			peer.mWindow = flow & Packet.FLOW_WINDOW_MASK;
+		}
+		if(refused) {
+			// Whatever else it says, the frame it names didn't get through
+			if(len >= Packet.BLOCK_ACK_SIZE)
+				peer.setBlock(ack.getDataShort(0) & Packet.MAX_SEQ_NUM, 
+						ack.getDataLong(2));
+			peer.mRefusedSeq = seq;
+		} else if(len >= Packet.BLOCK_ACK_SIZE) {
+			peer.setBlock(ack.getDataShort(0) & Packet.MAX_SEQ_NUM, 
+					ack.getDataLong(2));
+			peer.set(seq);
+		} else if(len >= Packet.FRAGMENT_ACK_SIZE) {
+			peer.setFragment(seq, ack.getDataShort(0) & Packet.EXT_FRAGMENT_MASK);
+		} else {
+			peer.set(seq);
+		}
+	}
+
+	/**
+	 * @param src A peer
+	 * @param seq A sequence number we sent it
+	 * @return True if the peer has acknowledged it
+	 */
+	public boolean isAcked(short src, int seq) {
+		Peer peer = findPeer(src);
+		return peer != null && peer.isSet(seq & Packet.MAX_SEQ_NUM);
+	}
+
+	/**
+	 * @param src A peer
+	 * @param seq The sequence number of a fragmented message we sent it
+	 * @param frag A fragment number
+	 * @return True if the peer has acknowledged that fragment
+	 */
+	public boolean isFragmentAcked(short src, int seq, int frag) {
+		Peer peer = findPeer(src);
+		return peer != null &&
+				peer.isFragmentSet(seq & Packet.MAX_SEQ_NUM, frag);
+	}
+
+	/**
+	 * @param src A peer
+	 * @param seq A sequence number we sent it
+	 * @return True if the peer refused that frame because it had no room
+	 */
+	public boolean isRefused(short src, int seq) {
+		Peer peer = findPeer(src);
+		return peer != null && peer.mRefusedSeq == (seq & Packet.MAX_SEQ_NUM);
+	}
+
+	/**
+	 * Forgets a refusal once it's been acted on, so it can't answer the
+	 * frame's next try
+	 * @param src The peer
+	 * @param seq The refused sequence number
+	 */
+	public void clearRefusal(short src, int seq) {
+		Peer peer = findPeer(src);
+		if(peer != null && peer.mRefusedSeq == (seq & Packet.MAX_SEQ_NUM))
+			peer.mRefusedSeq = -1;
+	}
+
+	/**
+	 * @param src A peer
+	 * @return How many more frames it last said it had room for, or -1 if
+	 *         it hasn't said
+	 */
+	public int window(short src) {
+		Peer peer = findPeer(src);
+		return (peer == null) ? -1 : peer.mWindow;
+	}
+
+	/**
+	 * Forgets any ACK for a sequence number, ready for it to be reused
+	 * @param dest The peer it's being used for
+	 * @param seq The sequence number
+	 */
+	public void clear(short dest, int seq) {
+		Peer peer = findPeer(dest);
+		if(peer != null)
+			peer.clear(seq & Packet.MAX_SEQ_NUM);
+	}
+
+	/**
+	 * Gets the state for a peer, creating it if need be
+	 * @param addr The peer's address
+	 * @return The state
+	 */
+	private Peer getPeer(short addr) {
+		int slot = mStations.slot(addr);
+		Peer peer = mPeers.get(slot);
+		if(peer == null) {
+			Peer fresh = new Peer();
+			peer = mPeers.compareAndExchange(slot, null, fresh);
+			if(peer == null)
+				peer = fresh;
+		}
+		return peer;
+	}
+
+	/**
+	 * @param addr A peer's address
+	 * @return Its state, or null if it has none
+	 */
+	private Peer findPeer(short addr) {
+		int slot = mStations.find(addr);
+		return (slot < 0) ? null : mPeers.get(slot);
+	}
+
+	/**
+	 * One peer's ACKs
+	 */
+	private static class Peer {
+		// Bit seq % 64 of word seq / 64 is set once seq is ACKed
+		private AtomicLongArray mBits =
+				new AtomicLongArray(SEQ_SPACE / Long.SIZE);
+		// Sequence number the fragment bitmap is for, -1 if none
+		private int mFragSeq = -1;
+		private long[] mFragBits = new long[Packet.MAX_FRAGMENTS / Long.SIZE];
+		// Receive window last advertised, -1 if none, and the sequence number
+		// last refused, -1 if none
+		private volatile int mWindow = -1;
+		private volatile int mRefusedSeq = -1;
+
+		private void setBlock(int end, long bits) {
+			for(int k = 0; k < Long.SIZE; k++) {
+				if((bits & (1L << k)) != 0)
+					set((end - k + SEQ_SPACE) % SEQ_SPACE);
+			}
+		}
+
+		private void set(int seq) {
+			int word = seq / Long.SIZE;
+			long bit = 1L << (seq % Long.SIZE);
+			long old;
+			do {
+				old = mBits.get(word);
+			} while((old & bit) == 0 && !mBits.compareAndSet(word, old, old | bit));
+		}
+
+		private boolean isSet(int seq) {
+			return (mBits.get(seq / Long.SIZE) & (1L << (seq % Long.SIZE))) != 0;
+		}
+
+		private void clear(int seq) {
+			int word = seq / Long.SIZE;
+			long bit = 1L << (seq % Long.SIZE);
+			long old;
+			do {
+				old = mBits.get(word);
+			} while((old & bit) != 0 && !mBits.compareAndSet(word, old, old & ~bit));
+			if(mRefusedSeq == seq)
+				mRefusedSeq = -1;
+			synchronized(this) {
+				if(mFragSeq == seq)
+					mFragSeq = -1;
+			}
+		}
+
+		private synchronized void setFragment(int seq, int frag) {
+			if(mFragSeq != seq) {
+				mFragSeq = seq;
+				for(int i = 0; i < mFragBits.length; i++)
+					mFragBits[i] = 0L;
+			}
+			mFragBits[frag / Long.SIZE] |= 1L << (frag % Long.SIZE);
+		}
+
+		private synchronized boolean isFragmentSet(int seq, int frag) {
+			return mFragSeq == seq &&
+					(mFragBits[frag / Long.SIZE] & (1L << (frag % Long.SIZE))) != 0;
+		}
+	}
+}
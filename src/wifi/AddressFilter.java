@@ -0,0 +1,87 @@
+package wifi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The set of MAC addresses a station listens on, kept as one bit per address
+ * over all 65,536 of them. Checking an address is a shift, a mask and a single
+ * array read, so RecvTask can throw out frames meant for other stations before
+ * it so much as looks at their CRC. Safe to change while RecvTask is reading.
+ *
+ * A second set marks which of those addresses are groups, broadcast and any
+ * multicast groups joined, whose frames mustn't be ACKed.
+ */
+public class AddressFilter {
+
+	private static final int ADDRESSES = LinkLayer.MAX_MAC + 1;
+
+	private AtomicLongArray mBits = new AtomicLongArray(ADDRESSES / 64);
+	private AtomicLongArray mGroups = new AtomicLongArray(ADDRESSES / 64);
+
+	/**
+	 * Starts listening on an address of our own, e.g. an alias
+	 * @param addr The address
+	 */
+	public void add(short addr) {
+		set(mBits, addr, true);
+	}
+
+	/**
+	 * Starts listening on a group address, e.g. broadcast or a multicast
+	 * group
+	 * @param addr The address
+	 */
+	public void addGroup(short addr) {
+		set(mGroups, addr, true);
+		set(mBits, addr, true);
+	}
+
+	/**
+	 * Stops listening on an address
+	 * @param addr The address
+	 */
+	public void remove(short addr) {
+		set(mBits, addr, false);
+		set(mGroups, addr, false);
+	}
+
+	/**
+	 * @param addr A frame's destination address
+	 * @return True if we're listening on it
+	 */
+	public boolean accepts(short addr) {
+		return isSet(mBits, addr);
+	}
+
+	/**
+	 * @param addr A frame's destination address
+	 * @return True if it's a group we're listening on
+	 */
+	public boolean isGroup(short addr) {
+		return isSet(mGroups, addr);
+	}
+
+	/**
+	 * Sets or clears an address's bit
+	 * @param bits The set
+	 * @param addr The address
+	 * @param on True to set the bit, false to clear it
+	 */
+	private static void set(AtomicLongArray bits, short addr, boolean on) {
+		int i = (addr & 0xFFFF) >>> 6;
+		long bit = 1L << (addr & 0x3F);
+		long old;
+		do {
+			old = bits.get(i);
+		} while(!bits.compareAndSet(i, old, on ? old | bit : old & ~bit));
+	}
+
+	/**
+	 * @param bits A set
+	 * @param addr An address
+	 * @return True if the address's bit is set
+	 */
+	private static boolean isSet(AtomicLongArray bits, short addr) {
+		return (bits.get((addr & 0xFFFF) >>> 6) & (1L << (addr & 0x3F))) != 0;
+	}
+}
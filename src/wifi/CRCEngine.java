@@ -0,0 +1,64 @@
+package wifi;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * CRC-32 helpers for 802.11~ frames. Full checksums reuse one CRC32 per thread
+ * instead of allocating a new one each time. A header change just marks the
+ * packet's CRC for recomputation: the intrinsic CRC32 is faster than patching
+ * the stored CRC, even for the biggest frames.
+ */
+public class CRCEngine {
+
+	private static final ThreadLocal<CRC32> CRC = new ThreadLocal<CRC32>() {
+		@Override
+		protected CRC32 initialValue() {
+			return new CRC32();
+		}
+	};
+
+	private CRCEngine() {
+		// static helpers only
+	}
+
+	/**
+	 * Computes the CRC-32 of a range of a buffer without copying it out
+	 * @param buf The buffer, heap or direct
+	 * @param offset Absolute index of the first byte to checksum
+	 * @param len Number of bytes to checksum
+	 * @return The CRC
+	 */
+	public static int compute(ByteBuffer buf, int offset, int len) {
+		CRC32 crc = CRC.get();
+		crc.reset();
+		if(buf.hasArray()) {
+			crc.update(buf.array(), buf.arrayOffset() + offset, len);
+		} else {
+			// Direct buffer. Narrow it to the range rather than duplicating
+			// it, then put it back the way we found it.
+			int position = buf.position();
+			int limit = buf.limit();
+			buf.limit(offset + len);
+			buf.position(offset);
+			crc.update(buf);
+			buf.limit(limit);
+			buf.position(position);
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Computes the CRC-32 of a range of an array
+	 * @param bytes The array
+	 * @param offset Index of the first byte to checksum
+	 * @param len Number of bytes to checksum
+	 * @return The CRC
+	 */
+	public static int compute(byte[] bytes, int offset, int len) {
+		CRC32 crc = CRC.get();
+		crc.reset();
+		crc.update(bytes, offset, len);
+		return (int) crc.getValue();
+	}
+}
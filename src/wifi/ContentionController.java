@@ -0,0 +1,79 @@
+package wifi;
+
+/**
+ * Adapts our contention window to how crowded the channel is, instead of
+ * starting every frame back at CWmin the way plain 802.11 backoff does. With
+ * many stations, resetting after each success just walks everyone straight
+ * back into the same collisions.
+ *
+ * Each access category keeps its own window, which persists from frame to
+ * frame. Every transmission's outcome, ACKed or timed out, feeds a smoothed
+ * failure rate. While that rate is over TARGET_FAILURE_RATE, each failure
+ * grows the window by half. While it's under, each success shrinks the
+ * window by a slot. The window settles where collisions stay rare but the
+ * channel isn't left idle, which is roughly where aggregate throughput
+ * peaks whatever the number of stations.
+ */
+public class ContentionController {
+
+	private static final String TAG = "ContentionController";
+
+	// Failure rate the controller steers towards
+	public static final double TARGET_FAILURE_RATE = 0.1;
+	// Weight each outcome gets in the smoothed failure rate
+	private static final double GAIN = 1.0 / 16;
+	// Multiplicative increase on failure, additive decrease on success
+	private static final double INCREASE = 1.5;
+	private static final double DECREASE = 1.0;
+	// Largest window the controller will use, in slots. Well past the RF
+	// layer's aCWmax, since a crowded channel needs more room than that.
+	public static final long MAX_CW = 1023;
+
+	private double[] mCW = new double[AccessCategory.COUNT];
+	private double[] mFailureRate = new double[AccessCategory.COUNT];
+
+	public ContentionController() {
+		for(int ac = 0; ac < AccessCategory.COUNT; ac++)
+			mCW[ac] = AccessCategory.cwMin(ac);
+	}
+
+	/**
+	 * Notes that a transmission was acknowledged
+	 * @param ac The access category it was sent under
+	 */
+	public void onSuccess(int ac) {
+		mFailureRate[ac] = mFailureRate[ac] + GAIN * (0 - mFailureRate[ac]);
+		if(mFailureRate[ac] < TARGET_FAILURE_RATE)
+			mCW[ac] = Math.max(AccessCategory.cwMin(ac), mCW[ac] - DECREASE);
+	}
+
+	/**
+	 * Notes that a transmission went unacknowledged, most likely a collision
+	 * @param ac The access category it was sent under
+	 */
+	public void onFailure(int ac) {
+		mFailureRate[ac] = mFailureRate[ac] + GAIN * (1 - mFailureRate[ac]);
+		if(mFailureRate[ac] > TARGET_FAILURE_RATE) {
+			// Grow by at least a slot, even from a window of 0
+			mCW[ac] = Math.min(MAX_CW, Math.max(mCW[ac] * INCREASE, mCW[ac] + 1));
+			Log.d(TAG, AccessCategory.name(ac) + " failure rate "
+					+ mFailureRate[ac] + ", contention window now " + cw(ac));
+		}
+	}
+
+	/**
+	 * @param ac An access category
+	 * @return Its contention window, in slots
+	 */
+	public long cw(int ac) {
+		return Math.round(mCW[ac]);
+	}
+
+	/**
+	 * @param ac An access category
+	 * @return Its smoothed failure rate, between 0 and 1
+	 */
+	public double failureRate(int ac) {
+		return mFailureRate[ac];
+	}
+}
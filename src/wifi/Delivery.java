@@ -0,0 +1,63 @@
+package wifi;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks one message handed to LinkLayer.sendAsync() across the frames it
+ * was split into, and completes the caller's future once they're all
+ * retired: with TX_DELIVERED if every frame got through, or TX_FAILED as
+ * soon as any frame is given up on.
+ *
+ * LinkLayer adds a frame to the count before queueing it, and seals the
+ * delivery once the whole message is queued, so frames SendTask retires
+ * early can't complete it before the rest exist.
+ */
+public class Delivery {
+
+	// Frames still in flight, plus one until the delivery is sealed
+	private AtomicInteger mPending = new AtomicInteger(1);
+	private volatile boolean mFailed;
+	private CompletableFuture<Integer> mFuture = new CompletableFuture<Integer>();
+
+	/**
+	 * Counts another frame the message went out in
+	 */
+	void addFrame() {
+		mPending.incrementAndGet();
+	}
+
+	/**
+	 * Notes that the message has been fully queued, or that no more of it
+	 * ever will be
+	 */
+	void seal() {
+		frameDone(true);
+	}
+
+	/**
+	 * Fails the message, e.g. when not all of it could be queued
+	 */
+	void fail() {
+		mFailed = true;
+		mFuture.complete(LinkLayer.TX_FAILED);
+	}
+
+	/**
+	 * Notes that one of the message's frames was retired
+	 * @param delivered True if it was acknowledged, false if given up on
+	 */
+	void frameDone(boolean delivered) {
+		if(!delivered)
+			fail();
+		if(mPending.decrementAndGet() == 0 && !mFailed)
+			mFuture.complete(LinkLayer.TX_DELIVERED);
+	}
+
+	/**
+	 * @return The future the message's outcome completes
+	 */
+	public CompletableFuture<Integer> future() {
+		return mFuture;
+	}
+}
@@ -0,0 +1,57 @@
+package wifi;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A single off-heap block of memory carved into MTU-sized slots, one per
+ * frame. A FramePool built over an arena backs its packets with these slots,
+ * so queued frames take up no heap and add nothing to GC pause times. The
+ * memory goes away when the arena and every packet using it are unreachable.
+ */
+public class FrameArena {
+
+	// Every slot holds the largest frame we'll ever build or receive
+	public static final int SLOT_SIZE = Packet.MAX_FRAME_BYTES;
+	// Most slots one arena can have, as a ByteBuffer is indexed by int
+	public static final int MAX_SLOTS = Integer.MAX_VALUE / SLOT_SIZE;
+
+	private ByteBuffer mMemory;
+	private int mSlots;
+
+	/**
+	 * Allocates the arena's memory up front
+	 * @param slots Number of frame slots, from 1 to MAX_SLOTS
+	 * @throws OutOfMemoryError if there isn't enough direct memory left
+	 */
+	public FrameArena(int slots) {
+		if(slots <= 0)
+			throw new IllegalArgumentException("Arena needs at least one slot");
+		long size = (long) slots * SLOT_SIZE;
+		if(slots > MAX_SLOTS)
+			throw new IllegalArgumentException("Arena of " + slots 
+					+ " slots needs " + size + " bytes, more than a buffer holds");
+		mSlots = slots;
+		mMemory = ByteBuffer.allocateDirect((int) size);
+	}
+
+	/**
+	 * @return Number of frame slots in the arena
+	 */
+	public int slots() {
+		return mSlots;
+	}
+
+	/**
+	 * Returns a buffer covering one slot. Slots don't overlap, so each one
+	 * can be handed to its own packet.
+	 * @param i Slot index, from 0 to slots() - 1
+	 * @return A big-endian buffer over the slot
+	 */
+	public ByteBuffer slot(int i) {
+		ByteBuffer dup = mMemory.duplicate();
+		dup.limit((i + 1) * SLOT_SIZE);
+		dup.position(i * SLOT_SIZE);
+		return dup.slice().order(ByteOrder.BIG_ENDIAN);
+	}
+}
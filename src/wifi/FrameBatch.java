@@ -0,0 +1,233 @@
+package wifi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes runs of frames into one contiguous buffer and decodes them back out
+ * in place. Each frame is stored as a 2 byte big-endian length followed by
+ * the frame itself, header and CRC included, exactly as it goes over the air.
+ * Decoding fills primitive arrays with each frame's offset, length, type and
+ * CRC validity, so a capture or replay tool can chew through millions of
+ * frames without creating a Packet for any of them. One batch object is
+ * meant to be reused for buffer after buffer.
+ */
+public class FrameBatch {
+
+	// Length prefix in front of every frame in a batch buffer
+	public static final int LENGTH_PREFIX_SIZE = 2;
+	// Type reported for entries too short to hold a header
+	public static final int NO_TYPE = -1;
+
+	private static final int MIN_FRAME_BYTES = Packet.HEADER_SIZE + Packet.CRC_SIZE;
+
+	private ByteBuffer mBuf; // Buffer most recently decoded
+	private int[] mOffsets; // Absolute index of each frame's first header byte
+	private int[] mLengths;
+	private int[] mTypes;
+	private boolean[] mValid;
+	private int mCount;
+
+	/**
+	 * Creates a batch that decodes up to capacity frames per call
+	 * @param capacity Most frames decode() reports at once
+	 */
+	public FrameBatch(int capacity) {
+		if(capacity <= 0)
+			throw new IllegalArgumentException("Batch capacity must be positive");
+		mOffsets = new int[capacity];
+		mLengths = new int[capacity];
+		mTypes = new int[capacity];
+		mValid = new boolean[capacity];
+	}
+
+	/**
+	 * Appends a packet to a batch buffer at its position
+	 * @param p The packet
+	 * @param out A big-endian buffer, heap or direct
+	 * @return False, leaving the buffer untouched, if it hasn't room
+	 */
+	public static boolean put(Packet p, ByteBuffer out) {
+		int size = p.size();
+		if(out.remaining() < LENGTH_PREFIX_SIZE + size)
+			return false;
+		out.putShort((short) size);
+		p.copyBytes(out);
+		return true;
+	}
+
+	/**
+	 * Builds a frame straight into a batch buffer at its position, CRC and
+	 * all, without going through a Packet
+	 * @param type Packet type
+	 * @param dest Destination MAC address
+	 * @param src Source MAC address
+	 * @param seqNum Sequence number
+	 * @param data Array holding the frame's data
+	 * @param offset Offset of the first data byte within the array
+	 * @param len Data length
+	 * @param out A big-endian buffer, heap or direct
+	 * @return False, leaving the buffer untouched, if it hasn't room
+	 */
+	public static boolean put(int type, short dest, short src, short seqNum,
+			byte[] data, int offset, int len, ByteBuffer out) {
+		int size = MIN_FRAME_BYTES + len;
+		if(len < 0 || size > Packet.MAX_FRAME_BYTES 
+				|| out.remaining() < LENGTH_PREFIX_SIZE + size)
+			return false;
+		out.putShort((short) size);
+		int start = out.position();
+		out.put((byte) (((type << 5) & 0xE0) | ((seqNum >> 8) & 0xF)));
+		out.put((byte) (seqNum & 0xFF));
+		out.putShort(dest);
+		out.putShort(src);
+		out.put(data, offset, len);
+		out.putInt(CRCEngine.compute(out, start, size - Packet.CRC_SIZE));
+		return true;
+	}
+
+	/**
+	 * Decodes frames from a batch buffer's position up to its limit, or
+	 * until this batch is full, and leaves the position just past the last
+	 * frame decoded. A frame cut off by the limit is left for next time.
+	 * @param in A big-endian batch buffer, heap or direct
+	 * @return Number of frames decoded
+	 */
+	public int decode(ByteBuffer in) {
+		mBuf = in;
+		mCount = 0;
+		int pos = in.position();
+		int limit = in.limit();
+		while(mCount < mOffsets.length && limit - pos >= LENGTH_PREFIX_SIZE) {
+			int len = in.getShort(pos) & 0xFFFF;
+			int start = pos + LENGTH_PREFIX_SIZE;
+			if(limit - start < len)
+				break;
+			mOffsets[mCount] = start;
+			mLengths[mCount] = len;
+			if(len < MIN_FRAME_BYTES) {
+				mTypes[mCount] = NO_TYPE;
+				mValid[mCount] = false;
+			} else {
+				mTypes[mCount] = (in.get(start) >> 5) & 0x7;
+				int crc = in.getInt(start + len - Packet.CRC_SIZE);
+				mValid[mCount] = 
+						crc == CRCEngine.compute(in, start, len - Packet.CRC_SIZE);
+			}
+			mCount++;
+			pos = start + len;
+		}
+		in.position(pos);
+		return mCount;
+	}
+
+	/**
+	 * @return Number of frames the last decode() reported
+	 */
+	public int count() {
+		return mCount;
+	}
+
+	/**
+	 * @return The buffer the last decode() read from
+	 */
+	public ByteBuffer buffer() {
+		return mBuf;
+	}
+
+	/**
+	 * @param i Frame index, from 0 to count() - 1
+	 * @return Absolute index of the frame's first header byte in buffer()
+	 */
+	public int offset(int i) {
+		return mOffsets[i];
+	}
+
+	/**
+	 * @param i Frame index
+	 * @return Total frame length, header and CRC included
+	 */
+	public int length(int i) {
+		return mLengths[i];
+	}
+
+	/**
+	 * @param i Frame index
+	 * @return The frame type, or NO_TYPE if the frame is truncated
+	 */
+	public int type(int i) {
+		return mTypes[i];
+	}
+
+	/**
+	 * @param i Frame index
+	 * @return True if the frame is complete and its CRC checks out
+	 */
+	public boolean isValid(int i) {
+		return mValid[i];
+	}
+
+	/**
+	 * @param i Frame index
+	 * @return The frame's sequence number
+	 */
+	public short seqNum(int i) {
+		int start = mOffsets[i];
+		return (short) (((mBuf.get(start) & 0xF) << 8) | (mBuf.get(start + 1) & 0xFF));
+	}
+
+	/**
+	 * @param i Frame index
+	 * @return The frame's destination address
+	 */
+	public short dest(int i) {
+		return mBuf.getShort(mOffsets[i] + Packet.CONTROL_SIZE);
+	}
+
+	/**
+	 * @param i Frame index
+	 * @return The frame's source address
+	 */
+	public short src(int i) {
+		return mBuf.getShort(
+				mOffsets[i] + Packet.CONTROL_SIZE + Packet.DEST_ADDR_SIZE);
+	}
+
+	/**
+	 * @param i Frame index
+	 * @return Absolute index of the frame's first data byte in buffer()
+	 */
+	public int dataOffset(int i) {
+		return mOffsets[i] + Packet.HEADER_SIZE;
+	}
+
+	/**
+	 * @param i Frame index
+	 * @return Length of the frame's data payload
+	 */
+	public int dataLen(int i) {
+		return Math.max(0, mLengths[i] - MIN_FRAME_BYTES);
+	}
+
+	/**
+	 * Copies one frame out of the batch, e.g. to hand it to Packet.parse()
+	 * @param i Frame index
+	 * @param dest Array of at least length(i) bytes
+	 * @param destOffset Offset into the destination array
+	 */
+	public void copyFrame(int i, byte[] dest, int destOffset) {
+		mBuf.get(mOffsets[i], dest, destOffset, mLengths[i]);
+	}
+
+	/**
+	 * Points a view at one frame of the batch, without copying. Only works
+	 * for heap buffers.
+	 * @param i Frame index
+	 * @param view The view to re-point
+	 * @return The view
+	 */
+	public PacketView view(int i, PacketView view) {
+		if(!mBuf.hasArray())
+			throw new UnsupportedOperationException("Batch buffer is direct");
+		return view.wrap(mBuf.array(), mBuf.arrayOffset() + mOffsets[i], mLengths[i]);
+	}
+}
@@ -0,0 +1,84 @@
+package wifi;
+
+/**
+ * Static decoder for the fixed 802.11~ header, read straight out of a raw
+ * frame's bytes. Nothing is allocated and nothing is checked beyond what
+ * the caller asks for, so it's cheap enough to run on every frame heard on
+ * the channel, most of which are for somebody else.
+ */
+public class FrameHeader {
+
+	private static final int DEST_OFFSET = Packet.CONTROL_SIZE;
+	private static final int SRC_OFFSET = 
+			Packet.CONTROL_SIZE + Packet.DEST_ADDR_SIZE;
+
+	private FrameHeader() {
+		// static helpers only
+	}
+
+	/**
+	 * @param frame Array holding the frame
+	 * @param offset Offset of the first header byte
+	 * @param length Total frame length
+	 * @return True if the frame is long enough to hold a header and a CRC
+	 */
+	public static boolean hasHeader(byte[] frame, int offset, int length) {
+		return length >= Packet.HEADER_SIZE + Packet.CRC_SIZE 
+				&& offset + length <= frame.length;
+	}
+
+	/**
+	 * @param frame Array holding the frame
+	 * @param offset Offset of the first header byte
+	 * @return The frame type
+	 */
+	public static int type(byte[] frame, int offset) {
+		return (frame[offset] >> 5) & 0x7;
+	}
+
+	/**
+	 * @param frame Array holding the frame
+	 * @param offset Offset of the first header byte
+	 * @return True if the frame is a retry
+	 */
+	public static boolean isRetry(byte[] frame, int offset) {
+		return (frame[offset] & 0x10) != 0;
+	}
+
+	/**
+	 * @param frame Array holding the frame
+	 * @param offset Offset of the first header byte
+	 * @return The frame's sequence number
+	 */
+	public static short seqNum(byte[] frame, int offset) {
+		return (short) (((frame[offset] & 0xF) << 8) | (frame[offset + 1] & 0xFF));
+	}
+
+	/**
+	 * @param frame Array holding the frame
+	 * @param offset Offset of the first header byte
+	 * @return The frame's destination address
+	 */
+	public static short dest(byte[] frame, int offset) {
+		return getShort(frame, offset + DEST_OFFSET);
+	}
+
+	/**
+	 * @param frame Array holding the frame
+	 * @param offset Offset of the first header byte
+	 * @return The frame's source address
+	 */
+	public static short src(byte[] frame, int offset) {
+		return getShort(frame, offset + SRC_OFFSET);
+	}
+
+	/**
+	 * Reads a big-endian short
+	 * @param bytes The array
+	 * @param index Index of the high byte
+	 * @return The short
+	 */
+	private static short getShort(byte[] bytes, int index) {
+		return (short) (((bytes[index] & 0xFF) << 8) | (bytes[index + 1] & 0xFF));
+	}
+}
@@ -0,0 +1,140 @@
+package wifi;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of reusable Packets, each with its own frame buffer sized for
+ * a fixed maximum payload. Frames are taken with acquire() (or wrap() for
+ * frames handed to us by the RF layer) and given back with Packet.release()
+ * once whoever consumes them is done. If the pool runs dry we fall back to
+ * allocating a one-off Packet, which is simply dropped on release, so the
+ * pool never grows past its capacity.
+ */
+public class FramePool {
+
+	private static final String TAG = "FramePool";
+
+	private BlockingQueue<Packet> mFree;
+	private int mMaxDataBytes;
+	private String mName;
+	private boolean mOffHeap;
+
+	/**
+	 * Creates a pool and fills it up front, so steady-state use allocates
+	 * nothing.
+	 * @param name Name used when logging
+	 * @param capacity Number of packets in the pool
+	 * @param maxDataBytes Largest payload a pooled packet needs to hold
+	 */
+	public FramePool(String name, int capacity, int maxDataBytes) {
+		mName = name;
+		mMaxDataBytes = maxDataBytes;
+		mFree = new ArrayBlockingQueue<Packet>(capacity);
+		for(int i = 0; i < capacity; i++)
+			mFree.offer(new Packet(this, maxDataBytes));
+	}
+
+	/**
+	 * Creates a pool whose packets live in the slots of an off-heap arena,
+	 * one packet per slot.
+	 * @param name Name used when logging
+	 * @param arena The arena to carve packets out of
+	 */
+	public FramePool(String name, FrameArena arena) {
+		mName = name;
+		mMaxDataBytes = Packet.MAX_DATA_BYTES;
+		mOffHeap = true;
+		mFree = new ArrayBlockingQueue<Packet>(arena.slots());
+		for(int i = 0; i < arena.slots(); i++)
+			mFree.offer(new Packet(this, arena.slot(i)));
+	}
+
+	/**
+	 * Takes a packet from the pool and builds a frame in it.
+	 * @param type Packet type
+	 * @param dest Destination MAC address
+	 * @param src Source MAC address
+	 * @param data Array holding the packet's data
+	 * @param offset Offset of the first data byte within the array
+	 * @param len Data length
+	 * @param seqNum Sequence number
+	 * @param timeInstantiated The time of this packet's instantiation
+	 * @return The packet. Call release() on it when done.
+	 */
+	public Packet acquire(int type, short dest, short src, byte[] data,
+			int offset, int len, short seqNum, long timeInstantiated) {
+		Packet p = take();
+		p.reset(type, dest, src, data, offset, len, seqNum, timeInstantiated);
+		return p;
+	}
+
+	/**
+	 * Takes a packet from the pool and builds an ext data frame in it.
+	 * @param control The extended control field
+	 * @param dest Destination MAC address
+	 * @param src Source MAC address
+	 * @param data Array holding the packet's data
+	 * @param offset Offset of the first data byte within the array
+	 * @param len Data length, not counting the control field
+	 * @param seqNum Sequence number
+	 * @param timeInstantiated The time of this packet's instantiation
+	 * @return The packet. Call release() on it when done.
+	 */
+	public Packet acquireExt(int control, short dest, short src, byte[] data,
+			int offset, int len, short seqNum, long timeInstantiated) {
+		Packet p = take();
+		p.resetExt(control, dest, src, data, offset, len, seqNum, 
+				timeInstantiated);
+		return p;
+	}
+
+	/**
+	 * Takes a packet from the pool and points it at a frame received from
+	 * the RF layer. The frame must already be validated. Heap pools wrap it
+	 * without copying, off-heap pools copy it into a slot.
+	 * @param frame The received frame
+	 * @param timeInstantiated The time the frame was received
+	 * @return The packet. Call release() on it when done.
+	 */
+	public Packet wrap(byte[] frame, long timeInstantiated) {
+		Packet p = take();
+		p.rewrap(frame, timeInstantiated);
+		return p;
+	}
+
+	/**
+	 * @return True if this pool's packets live in an off-heap arena
+	 */
+	public boolean isOffHeap() {
+		return mOffHeap;
+	}
+
+	/**
+	 * @return Number of packets currently sitting in the pool
+	 */
+	public int available() {
+		return mFree.size();
+	}
+
+	/**
+	 * Returns a packet to the pool. Called through Packet.release().
+	 * @param p A packet that belongs to this pool
+	 */
+	void recycle(Packet p) {
+		if(!mFree.offer(p))
+			Log.e(TAG, mName + " pool overflowed, a packet was released twice");
+	}
+
+	/**
+	 * @return A pooled packet, or a one-off packet if the pool is empty
+	 */
+	private Packet take() {
+		Packet p = mFree.poll();
+		if(p == null) {
+			Log.d(TAG, mName + " pool exhausted, allocating");
+			p = new Packet(null, mMaxDataBytes);
+		}
+		return p;
+	}
+}
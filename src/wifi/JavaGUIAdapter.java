@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.util.Arrays;
 
 /**
  * This class acts as a thin layer between the GUI client code and the Java-based
@@ -15,9 +16,15 @@ import java.io.PrintWriter;
  */
 
 public class JavaGUIAdapter implements GUIClientInterface {
-   private static Dot11Interface theDot11Layer;
+   // Our own layer, rather than any Dot11Interface, for its in-place recv()
+   private static LinkLayer theDot11Layer;
    private static CircularByteBuffer cbb;
    private static BufferedReader reader;
+   // Reused for every receive: the sender's address, then up to 2048 bytes
+   // of data received straight in behind it
+   private static final byte[] recvBuf = new byte[2 + 2048];
+   private static final Transmission recvTrans = 
+         new Transmission((short)0, (short)0, recvBuf);
    
    /**
     * An array of addresses to use for the "send" buttons in the GUI.
@@ -58,23 +65,19 @@ public class JavaGUIAdapter implements GUIClientInterface {
     * @return An array of bytes containing MAC addresses and data
     */
    public byte[] watchForIncomingData() {
-      // Create a Transmission object, and pass it to the recv() call
-      byte[] buf = new byte[2048];
-      Transmission t = new Transmission((short)0, (short)0, buf);
-      int result = theDot11Layer.recv(t); 
+      // Receive straight into our buffer, leaving room for the address
+      int result = theDot11Layer.recv(recvTrans, 2); 
       
       // See if there was any data in the transmission
       int dataLen = 0;
       if (result > 0)
          dataLen = result;
       
-      // Build a byte array, fill it with the source address and data,
-      // and return the whole shebang.
-      byte[] data = new byte[dataLen + 2]; 
-      data[0] = (byte) ((t.getSourceAddr() >>> 8) & 0xFF);
-      data[1] = (byte) (t.getSourceAddr() & 0xFF);
-      System.arraycopy(t.getBuf(), 0, data, 2, dataLen);
-      return data;
+      // Put the source address in front of the data, and return a copy of
+      // the whole shebang, the only array we make per call.
+      recvBuf[0] = (byte) ((recvTrans.getSourceAddr() >>> 8) & 0xFF);
+      recvBuf[1] = (byte) (recvTrans.getSourceAddr() & 0xFF);
+      return Arrays.copyOf(recvBuf, dataLen + 2);
    }
 
    /**
@@ -1,12 +1,12 @@
 package wifi;
 import java.io.PrintWriter;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 import rf.RF;
 
@@ -41,24 +41,75 @@ public class LinkLayer implements Dot11Interface {
 
 	public static final int RECV_DATA_BUFFER_SIZE = 4;
 	public static final int OUT_DATA_BUFFER_SIZE = 4;
-	public static final int RECV_ACK_BUFFER_SIZE = 5;
 	public static final int SEND_ACK_BUFFER_SIZE = 5;
+	// Each message recv(ByteBuffer) writes starts with its source address,
+	// two bytes, and its length, four, since reassembled messages can run
+	// well past what two bytes hold
+	public static final int RECV_RECORD_HEADER_SIZE = 6;
+
+	// Pool sizes cover a full queue plus the frames being built or in flight
+	private static final int DATA_POOL_SIZE = OUT_DATA_BUFFER_SIZE + 2;
+	private static final int ACK_POOL_SIZE = SEND_ACK_BUFFER_SIZE + 1;
+	private static final int RECV_POOL_SIZE = 
+			RECV_DATA_BUFFER_SIZE + 2;
+	// Most peer stations tracked separately, see StationTable
+	private static final int MAX_STATIONS = 1024;
+	// Most we'll put in one fragmented message, bigger sends become several
+	private static final int MAX_FRAGMENTED_BYTES = 
+			Packet.MAX_FRAGMENTS * Packet.MAX_EXT_DATA_BYTES;
 
 	private RF mRF;   // The physical layer
 	private short mMac; // Our MAC address
 
-	private BlockingQueue<Packet> mRecvData;
-	private BlockingQueue<Packet> mRecvAck;
-	private BlockingQueue<Packet> mSendAckQueue;
-	private BlockingQueue<Packet> mSendDataQueue;	
-
+	// Each of these has one producer and one consumer thread. Outgoing data
+	// stays in TxQueues, which is shared by every thread calling send().
+	// Threads calling recv() take turns under mRecvLock, so mRecvData still
+	// only has one consumer at a time.
+	private SpscRing<Packet> mRecvData;
+	private SpscRing<Packet> mSendAckQueue;
+	private TxQueues mSendDataQueue;	
+	// Held while a send's frames are queued, one per destination and access
+	// category, indexed by StationTable.flow() and made as first needed
+	private AtomicReferenceArray<ReentrantLock> mSendLocks = 
+			new AtomicReferenceArray<ReentrantLock>(
+					MAX_STATIONS * AccessCategory.COUNT);
+	// Held by whichever thread is in recv(), guarding mRecvData's consumer
+	// side and the partly handed out message below
+	private ReentrantLock mRecvLock = new ReentrantLock();
+	// ACKs RecvTask has received, for SendTask to look up
+	private AckTable mAckTable;
+	// Per-station sequence numbers, counters and RTT estimates
+	private StationTable mStations;
+
+	// Reusable frames for outgoing data, outgoing ACKs and received frames.
+	// The data pool is swapped out when the frame arena is reconfigured.
+	private volatile FramePool mDataPool;
+	private FramePool mAckPool;
+	private FramePool mRecvPool;
+	// Slots in the off-heap frame arena, or 0 if frames live on the heap
+	private int mArenaSlots;
+	// Addresses RecvTask accepts frames for
+	private AddressFilter mAddressFilter;
+	// Wakes SendTask when we've queued something for it
+	private MacScheduler mScheduler;
+	// Access category send() uses when the caller doesn't pick one
+	private volatile int mDefaultAc = AccessCategory.AC_BE;
+
+	private Thread mReaderThread;
+	private RfReader mReader;
 	private Thread mRecvThread;
 	private RecvTask mRecvTask;
 	private Thread mSendThread;
 	private SendTask mSendTask;
 
-	// Offset into the current data packet
+	// Offset into the current message
 	private int mLastRecvDataOffset;
+	// Payload offset and length of the message recv() is handing out. Plain
+	// data frames hold one message, aggregate frames one per subframe.
+	private int mMsgOffset;
+	private int mMsgLen;
+	// Payload offset of the next subframe, or -1 once a frame is used up
+	private int mNextMsgOffset;
 	// Last received data packet
 	private Packet mLastRecvData;
 
@@ -102,20 +153,38 @@ public class LinkLayer implements Dot11Interface {
 		if(mRF == null)
 			setStatus(RF_INIT_FAILED);
 
-		mRecvData = new ArrayBlockingQueue<Packet>(RECV_DATA_BUFFER_SIZE);
-		mSendAckQueue = new ArrayBlockingQueue<Packet>(SEND_ACK_BUFFER_SIZE);
-		mRecvAck = new ArrayBlockingQueue<Packet>(RECV_ACK_BUFFER_SIZE);
-		mSendDataQueue = new ArrayBlockingQueue<Packet>(OUT_DATA_BUFFER_SIZE);
+		mRecvData = new SpscRing<Packet>(RECV_DATA_BUFFER_SIZE);
+		mSendAckQueue = new SpscRing<Packet>(SEND_ACK_BUFFER_SIZE);
+		mStations = new StationTable(MAX_STATIONS);
+		mAckTable = new AckTable(mStations);
+		mSendDataQueue = new TxQueues(OUT_DATA_BUFFER_SIZE);
+
+		mDataPool = new FramePool("data", DATA_POOL_SIZE, Packet.MAX_DATA_BYTES);
+		mAckPool = new FramePool("ack", ACK_POOL_SIZE, 
+				Packet.BLOCK_ACK_SIZE + Packet.FLOW_CONTROL_SIZE);
+		mRecvPool = new FramePool("recv", RECV_POOL_SIZE, 0);
+		mAddressFilter = new AddressFilter();
+		mAddressFilter.add(ourMAC);
+		mAddressFilter.addGroup(Packet.BEACON_MAC);
+
+		mClock = new NSyncClock(ourMAC, mStations);
+		mScheduler = new MacScheduler(mClock);
 
-		mClock = new NSyncClock(ourMAC);
+		mReader = new RfReader(mRF, mClock);
+		mReaderThread = TaskThreads.newThread(mReader, "RfReader " + ourMAC);
+		mReaderThread.start();
 
-		mRecvTask = new RecvTask(mRF, 
+		mRecvTask = new RecvTask(mReader, 
 								mClock, 
 								mSendAckQueue, 
-								mRecvAck, 
+								mAckTable, 
 								mRecvData, 
-								ourMAC);
-		mRecvThread = new Thread(mRecvTask);
+								mAckPool,
+								mRecvPool,
+								mAddressFilter,
+								mScheduler,
+								mStations);
+		mRecvThread = TaskThreads.newThread(mRecvTask, "RecvTask " + ourMAC);
 		mRecvThread.start();
 
 		mSendTask = new SendTask(mRF, 
@@ -123,10 +192,12 @@ public class LinkLayer implements Dot11Interface {
 								mStatus, 
 								mSendDataQueue, 
 								mSendAckQueue, 
-								mRecvAck, 
+								mAckTable, 
+								mScheduler,
+								mStations,
 								ourMAC);
 
-		mSendThread = new Thread(mSendTask);
+		mSendThread = TaskThreads.newThread(mSendTask, "SendTask " + ourMAC);
 		mSendThread.start();
 
 		mLastRecvDataOffset = 0;
@@ -140,9 +211,100 @@ public class LinkLayer implements Dot11Interface {
 
 	/**
 	 * Send method takes a destination, a buffer (array) of data, and the number
-	 * of bytes to send.  See docs for full description.
+	 * of bytes to send.  See docs for full description. The data goes out 
+	 * under the default access category, best effort unless command 9 
+	 * changed it.
 	 */
 	public int send(short dest, byte[] data, int len) {
+		return send(dest, data, len, mDefaultAc);
+	}
+
+	/**
+	 * Sends data under an EDCA access category, e.g. AccessCategory.AC_VO for
+	 * control traffic that mustn't wait behind bulk transfers.
+	 * @param dest Destination MAC address
+	 * @param data Data to send
+	 * @param len Number of bytes of data to send
+	 * @param ac One of the AccessCategory constants
+	 * @return Number of bytes queued, or -1 on error
+	 */
+	public int send(short dest, byte[] data, int len, int ac) {
+		return send(dest, data, len, ac, null);
+	}
+
+	/**
+	 * Sends a whole array without waiting to hear how it went. The future 
+	 * completes with TX_DELIVERED once every frame the message went out in 
+	 * has been acknowledged, or with TX_FAILED as soon as one of them is 
+	 * given up on or the message can't be queued. Unlike status(), it 
+	 * speaks for this message alone. It's completed from the send thread, 
+	 * so anything slow chained onto it should use the async variants.
+	 * @param dest Destination MAC address
+	 * @param data Data to send
+	 * @return The message's outcome
+	 */
+	public CompletableFuture<Integer> sendAsync(short dest, byte[] data) {
+		return sendAsync(dest, data, data.length, mDefaultAc);
+	}
+
+	/**
+	 * Like sendAsync(dest, data), for part of an array under an EDCA access
+	 * category
+	 * @param dest Destination MAC address
+	 * @param data Data to send
+	 * @param len Number of bytes of data to send
+	 * @param ac One of the AccessCategory constants
+	 * @return The message's outcome
+	 */
+	public CompletableFuture<Integer> sendAsync(short dest, byte[] data, 
+			int len, int ac) {
+		Delivery delivery = new Delivery();
+		if(send(dest, data, len, ac, delivery) < len)
+			delivery.fail();
+		delivery.seal();
+		return delivery.future();
+	}
+
+	/**
+	 * Queues data for SendTask under its flow's send lock, so one caller's
+	 * fragments never end up interleaved with another's. Only sends to the
+	 * same destination under the same access category share a queue, so 
+	 * only they wait on each other; a big message blocking for queue space
+	 * holds no one else up. It's a lock rather than a monitor so a virtual
+	 * thread waiting for queue space doesn't pin its carrier thread.
+	 * @param dest Destination MAC address
+	 * @param data Data to send
+	 * @param len Number of bytes of data to send
+	 * @param ac One of the AccessCategory constants
+	 * @param delivery Tracks the message for sendAsync(), or null
+	 * @return Number of bytes queued, or -1 on error
+	 */
+	private int send(short dest, byte[] data, int len, int ac,
+			Delivery delivery) {
+		if(!AccessCategory.isValid(ac)) {
+			setStatus(ILLEGAL_ARGUMENT);
+			return -1;
+		}
+		ReentrantLock lock = sendLock(dest, ac);
+		lock.lock();
+		try {
+			return queue(dest, data, len, ac, delivery);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues data for SendTask. Callers hold the flow's send lock.
+	 * @param dest Destination MAC address
+	 * @param data Data to send
+	 * @param len Number of bytes of data to send
+	 * @param ac One of the AccessCategory constants
+	 * @param delivery Tracks the message for sendAsync(), or null
+	 * @return Number of bytes queued, or -1 on error
+	 */
+	private int queue(short dest, byte[] data, int len, int ac,
+			Delivery delivery) {
 		// If we're not in standard mode, don't accept any packets
 		if(layerMode != MODE_STANDARD)
 			return 0;
@@ -161,8 +323,9 @@ public class LinkLayer implements Dot11Interface {
 			return -1;
 		}
 
-		// Don't queue more than MAX_OUT_DATA_PACKETS
-		if(mSendDataQueue.size() > OUT_DATA_BUFFER_SIZE) {
+		// Don't queue more than OUT_DATA_BUFFER_SIZE packets per destination
+		// in each access category
+		if(mSendDataQueue.remainingCapacity(dest, ac) == 0) {
 			setStatus(INSUFFICIENT_BUFFER_SPACE);
 			return -1;
 		}
@@ -173,22 +336,34 @@ public class LinkLayer implements Dot11Interface {
 		// handle broadcast packets from above as well.
 		int code = (dest == Packet.BEACON_MAC) ?
 				Packet.CTRL_BEACON_CODE : Packet.CTRL_DATA_CODE;
-		// We can only wrap Packet.MAX_DATA_BYTES per packet
+		// Nobody ACKs broadcasts, so only unicast messages get fragmented
+		if(code == Packet.CTRL_DATA_CODE && len > Packet.MAX_EXT_DATA_BYTES)
+			return sendFragmented(dest, data, len, ac, delivery);
+		// We can only wrap Packet.MAX_EXT_DATA_BYTES per packet, leaving room
+		// for SendTask to make it an ext data frame for a block ACK burst.
 		// So loop until we've wrapped all the data in packets
 		int queued = 0;
 		while(queued < len) {
 			int toQueue = len - queued;
-			toQueue = (int)Math.min(toQueue, Packet.MAX_DATA_BYTES);
-			byte[] sendData  = new byte[toQueue];
-			System.arraycopy(data, queued, sendData, 0, toQueue);
-			Packet packet = new Packet(code, 
+			toQueue = (int)Math.min(toQueue, Packet.MAX_EXT_DATA_BYTES);
+			// Build the frame straight out of the caller's array
+			Packet packet = mDataPool.acquire(code, 
 										dest, 
 										mMac, 
-										sendData, 
-										len, 
+										data, 
+										queued,
+										toQueue, 
+										(short) 0,
 										mClock.time());
+			packet.setAccessCategory(ac);
+			track(packet, delivery);
 			// Queue it for sending
-			mSendDataQueue.offer(packet);
+			if(!mSendDataQueue.offer(packet)) {
+				packet.release();
+				setStatus(INSUFFICIENT_BUFFER_SPACE);
+				break;
+			}
+			mScheduler.signal();
 			queued = queued + toQueue;
 		}
 		return queued;
@@ -200,42 +375,115 @@ public class LinkLayer implements Dot11Interface {
 	 */
 	public int recv(Transmission t) {
 		Log.i(TAG, "recv() called, waiting for queued data");
-
-		// Only take a new packet if we've fully consumed the last packet
-		if(mLastRecvData == null) {
-			try {
-				mLastRecvData = mRecvData.take();
-			} catch (InterruptedException e) {
-				Log.e(TAG, "recv() interrupted while blocking on take()");
-				e.printStackTrace();
+		if(!lockRecv())
+			return 0;
+		try {
+			if(!haveMessage(true))
 				return 0;
-			}
+			// Check if data will fit in the Transmission buffer. If it 
+			// doesn't, copy in as much as we can and hand out the rest next
+			// call.
+			byte[] buf = new byte[Math.min(mMsgLen - mLastRecvDataOffset, 
+					t.getBuf().length)];
+			int dataLength = copyMessage(t, buf, 0, buf.length);
+			t.setBuf(buf);
+			return dataLength;
+		} finally {
+			mRecvLock.unlock();
 		}
+	}
 
-		// Put addresses in Transmission object
-		t.setDestAddr(mLastRecvData.getDestAddr());
-		t.setSourceAddr(mLastRecvData.getSrcAddr());
+	/**
+	 * Like recv(t), but copies the data straight into the Transmission's own
+	 * buffer, starting at offset, instead of giving it a new one. A caller 
+	 * can keep reusing the same buffer. 
+	 * @param t Where to put the addresses and data
+	 * @param offset Where in t's buffer the data goes
+	 * @return Number of bytes received, also left in t.getLength(), or -1 
+	 *         if offset is outside the buffer
+	 */
+	public int recv(Transmission t, int offset) {
+		byte[] buf = t.getBuf();
+		if(offset < 0 || offset > buf.length) {
+			setStatus(BAD_BUF_SIZE);
+			return -1;
+		}
+		if(!lockRecv())
+			return 0;
+		try {
+			if(!haveMessage(true))
+				return 0;
+			int dataLength = copyMessage(t, buf, offset, buf.length - offset);
+			t.setLength(dataLength);
+			return dataLength;
+		} finally {
+			mRecvLock.unlock();
+		}
+	}
 
-		int dataLength;
-		int transBufLength = t.getBuf().length;
-		byte[] data = mLastRecvData.getData();
-		// Check if data will fit in the Transmission buffer
-		if(data.length - mLastRecvDataOffset <= transBufLength) {
-			t.setBuf(Arrays.copyOfRange(data, mLastRecvDataOffset, data.length));
-			dataLength = data.length - mLastRecvDataOffset;
+	/**
+	 * Receives as many messages as are queued, up to one per Transmission, 
+	 * each copied into its Transmission's own buffer as recv(t, 0) would. 
+	 * Blocks until there's at least one. A message too big for its buffer 
+	 * carries on in the next Transmission, or the next call.
+	 * @param ts Where to put the messages
+	 * @return Number of Transmissions filled
+	 */
+	public int recvMany(Transmission[] ts) {
+		if(!lockRecv())
+			return 0;
+		try {
+			int count = 0;
+			while(count < ts.length && haveMessage(count == 0)) {
+				Transmission t = ts[count];
+				byte[] buf = t.getBuf();
+				t.setLength(copyMessage(t, buf, 0, buf.length));
+				count++;
+			}
+			return count;
+		} finally {
+			mRecvLock.unlock();
+		}
+	}
 
-			// Reset offset and consume packet
-			mLastRecvDataOffset = 0;
-			mLastRecvData = null;
-		} else {
-			// If packet length exceeds buffer length, copy in as much as we can
-			t.setBuf(Arrays.copyOfRange(data, mLastRecvDataOffset, transBufLength));
-			dataLength = transBufLength;  
-
-			// Set offset into packet data for next call, and don't consume packet
-			mLastRecvDataOffset = mLastRecvDataOffset + transBufLength;
-		}                
-		return dataLength;
+	/**
+	 * Receives as many messages as are queued and fit into a buffer, 
+	 * starting at its position. Each is written as its source address and
+	 * its length, RECV_RECORD_HEADER_SIZE bytes in all, then its data. 
+	 * Blocks until there's at least one. A message that doesn't fit waits 
+	 * for the next call, unless it's the first, in which case as much as 
+	 * fits is written and the rest handed out next call, as with recv(). 
+	 * The buffer's position ends up past the last message.
+	 * @param dst The buffer, heap or direct
+	 * @return Number of messages written, or -1 if the buffer hasn't room
+	 *         for even a message header
+	 */
+	public int recv(ByteBuffer dst) {
+		if(dst.remaining() < RECV_RECORD_HEADER_SIZE) {
+			setStatus(BAD_BUF_SIZE);
+			return -1;
+		}
+		if(!lockRecv())
+			return 0;
+		try {
+			int count = 0;
+			while(haveMessage(count == 0)) {
+				int room = dst.remaining() - RECV_RECORD_HEADER_SIZE;
+				int remaining = mMsgLen - mLastRecvDataOffset;
+				if(room < 0 || (count > 0 && remaining > room))
+					break;
+				int len = Math.min(remaining, room);
+				dst.putShort(mLastRecvData.getSrcAddr());
+				dst.putInt(len);
+				mLastRecvData.copyData(mMsgOffset + mLastRecvDataOffset, dst, 
+						len);
+				consumed(len);
+				count++;
+			}
+			return count;
+		} finally {
+			mRecvLock.unlock();
+		}
 	}
 
 	/**
@@ -247,6 +495,7 @@ public class LinkLayer implements Dot11Interface {
 	
 	/**
 	 * Passes command info to your link layer.  See docs for full description.
+	 * Returns -1 if the command couldn't be carried out with the value given.
 	 */
 	public int command(int cmd, int val) {
 
@@ -256,8 +505,21 @@ public class LinkLayer implements Dot11Interface {
 			Log.i(TAG, "LinkLayer: Current Settings: \n" + 
 					"1. debugLevel: " + debugLevel + "\n" +
 					"2. slotSelectionPolicy: " 
-					+ mSendTask.getSlotSelectionPolicy() + "\n" +
-					"3. beaconInterval: " + mClock.getBeaconInterval() + "\n");
+					+ mSendTask.getSlotSelectionPolicy() + 
+					" (0 random, 1 fixed, 2 adaptive)\n" +
+					"3. beaconInterval: " + mClock.getBeaconInterval() + "\n" +
+					"4. frameArenaSlots: " + mArenaSlots + "\n" +
+					"5. aggregation: " + mSendTask.getAggregation() + "\n" +
+					"6. windowSize: " + mSendTask.getWindowSize() + "\n" +
+					"7. joinAddress: val joins address val\n" +
+					"8. leaveAddress: val leaves address val\n" +
+					"9. defaultAccessCategory: " 
+					+ AccessCategory.name(mDefaultAc) + 
+					" (0 background, 1 best effort, 2 video, 3 voice)\n" +
+					"10. queueWaitStrategy: " + mRecvData.getWaitStrategy() +
+					" (0 spin, 1 yield, 2 park)\n" +
+					"11. stationStats: logs per-station counters\n" +
+					"12. joinGroup: val joins multicast group val\n");
 			break;
 		case 1: // Debug Level
 			debugLevel = val;
@@ -267,16 +529,313 @@ public class LinkLayer implements Dot11Interface {
 			break;
 		case 3: // Beacon Interval
 			mClock.setBeaconInterval(val);
+			// SendTask may be waiting on the old interval
+			mScheduler.signal();
 			break;		
+		case 4: // Off-heap frame arena capacity, in frames. 0 disables it.
+			if(!setFrameArena(val)) {
+				setStatus(ILLEGAL_ARGUMENT);
+				return -1;
+			}
+			break;
+		case 5: // Aggregation of small sends, off by default, 0 disables it
+			mSendTask.setAggregation(val != 0);
+			break;
+		case 6: // Block ACK window size, in frames. 1 is stop-and-wait.
+			mSendTask.setWindowSize(val);
+			break;
+		case 7: // Start accepting frames sent to another address
+			if(!joinAddress((short) val))
+				return -1;
+			break;
+		case 8: // Stop accepting frames sent to a joined address
+			if(!leaveAddress((short) val))
+				return -1;
+			break;
+		case 9: // Access category for send() without one
+			if(!AccessCategory.isValid(val)) {
+				setStatus(ILLEGAL_ARGUMENT);
+				return -1;
+			}
+			mDefaultAc = val;
+			break;
+		case 10: // How threads blocked on a full or empty queue wait
+			if(SpscRing.isValidWaitStrategy(val)) {
+				mRecvData.setWaitStrategy(val);
+				mSendAckQueue.setWaitStrategy(val);
+			} else {
+				setStatus(ILLEGAL_ARGUMENT);
+				return -1;
+			}
+			break;
+		case 11: // Per-station frame counters and RTT
+			mStations.logStats();
+			break;
+		case 12: // Start accepting, but never ACKing, a multicast group
+			if(!joinGroup((short) val))
+				return -1;
+			break;
 		}
 		return 0;
 	}
 
+	/**
+	 * Starts accepting frames sent to an alias for this station. They're
+	 * ACKed like our own, from the alias.
+	 * @param addr The address to join
+	 * @return True if joined, false if addr isn't a valid MAC address
+	 */
+	public boolean joinAddress(short addr) {
+		if(addr == Packet.BEACON_MAC) {
+			setStatus(BAD_MAC_ADDRESS);
+			return false;
+		}
+		mAddressFilter.add(addr);
+		Log.i(TAG, "Joined address " + addr);
+		return true;
+	}
+
+	/**
+	 * Starts accepting frames sent to a multicast group. Every member gets
+	 * them, so none of us ACKs them.
+	 * @param addr The group's address
+	 * @return True if joined, false if addr isn't a valid MAC address
+	 */
+	public boolean joinGroup(short addr) {
+		if(addr == Packet.BEACON_MAC || addr == mMac) {
+			setStatus(BAD_MAC_ADDRESS);
+			return false;
+		}
+		mAddressFilter.addGroup(addr);
+		Log.i(TAG, "Joined group " + addr);
+		return true;
+	}
+
+	/**
+	 * Stops accepting frames sent to an address joined with joinAddress() or
+	 * joinGroup().
+	 * Our own address and the broadcast address can't be left.
+	 * @param addr The address to leave
+	 * @return True if left, false if addr is ours or broadcast
+	 */
+	public boolean leaveAddress(short addr) {
+		if(addr == mMac || addr == Packet.BEACON_MAC) {
+			setStatus(BAD_MAC_ADDRESS);
+			return false;
+		}
+		mAddressFilter.remove(addr);
+		Log.i(TAG, "Left address " + addr);
+		return true;
+	}
+
 	// PACKAGE PRIVATE / PROTECTED METHODS
 	//-------------------------
 
 	// PRIVATE METHODS
 	//------------------
+
+	/**
+	 * Queues a message too big for one frame as a run of fragments sharing
+	 * one sequence number, which the receiver's RecvTask puts back together.
+	 * Sends too big for MAX_FRAGMENTS fragments go out as several messages.
+	 * @param dest Destination MAC address
+	 * @param data Array holding the message
+	 * @param len Message length
+	 * @param ac Access category to send it under
+	 * @param delivery Tracks the message for sendAsync(), or null
+	 * @return Number of bytes queued
+	 */
+	private int sendFragmented(short dest, byte[] data, int len, int ac,
+			Delivery delivery) {
+		int queued = 0;
+		while(queued < len) {
+			int msgEnd = queued + Math.min(len - queued, MAX_FRAGMENTED_BYTES);
+			int frag = 0;
+			while(queued < msgEnd) {
+				int toQueue = Math.min(msgEnd - queued, Packet.MAX_EXT_DATA_BYTES);
+				int control = frag;
+				if(queued + toQueue < msgEnd)
+					control = control | Packet.EXT_MORE_FRAGMENTS;
+				Packet packet = mDataPool.acquireExt(control, 
+											dest, 
+											mMac, 
+											data, 
+											queued, 
+											toQueue, 
+											(short) 0, 
+											mClock.time());
+				packet.setAccessCategory(ac);
+				track(packet, delivery);
+				if(frag == 0) {
+					// Only the first fragment has to find room right away
+					if(!mSendDataQueue.offer(packet)) {
+						packet.release();
+						setStatus(INSUFFICIENT_BUFFER_SPACE);
+						return queued;
+					}
+					mScheduler.signal();
+				} else {
+					// The rest wait on SendTask so the message isn't cut short
+					try {
+						mSendDataQueue.put(packet);
+						mScheduler.signal();
+					} catch (InterruptedException e) {
+						Log.e(TAG, "send() interrupted while queueing fragments");
+						packet.release();
+						return queued;
+					}
+				}
+				queued = queued + toQueue;
+				frag++;
+			}
+		}
+		return queued;
+	}
+
+	/**
+	 * Gets the lock sends to a destination under an access category queue
+	 * their frames under, making it if need be
+	 * @param dest Destination MAC address
+	 * @param ac One of the AccessCategory constants
+	 * @return The lock
+	 */
+	private ReentrantLock sendLock(short dest, int ac) {
+		int flow = StationTable.flow(mStations.slot(dest), ac);
+		ReentrantLock lock = mSendLocks.get(flow);
+		if(lock == null) {
+			// Whoever gets there first makes it
+			mSendLocks.compareAndSet(flow, null, new ReentrantLock());
+			lock = mSendLocks.get(flow);
+		}
+		return lock;
+	}
+
+	/**
+	 * Counts a frame towards a sendAsync() message before it's queued, so
+	 * SendTask can't finish the message before the frame is part of it
+	 * @param packet The frame
+	 * @param delivery The message's delivery, or null for plain send()
+	 */
+	private void track(Packet packet, Delivery delivery) {
+		if(delivery == null)
+			return;
+		delivery.addFrame();
+		packet.addDelivery(delivery);
+	}
+
+	/**
+	 * Takes mRecvLock, waiting for any other thread in recv() to finish. 
+	 * Interrupting the wait gives up on it, as it would on the queue.
+	 * @return False if we were interrupted waiting
+	 */
+	private boolean lockRecv() {
+		try {
+			mRecvLock.lockInterruptibly();
+			return true;
+		} catch (InterruptedException e) {
+			Log.e(TAG, "recv() interrupted while waiting for another recv()");
+			return false;
+		}
+	}
+
+	/**
+	 * Makes sure mLastRecvData has a message to hand out, taking a new packet
+	 * once the last one is fully consumed. Callers hold mRecvLock.
+	 * @param block True to wait for one if none is queued
+	 * @return False if there's none, or we were interrupted waiting
+	 */
+	private boolean haveMessage(boolean block) {
+		while(mLastRecvData == null) {
+			if(block) {
+				try {
+					mLastRecvData = mRecvData.take();
+				} catch (InterruptedException e) {
+					Log.e(TAG, "recv() interrupted while blocking on take()");
+					e.printStackTrace();
+					return false;
+				}
+			} else {
+				mLastRecvData = mRecvData.poll();
+				if(mLastRecvData == null)
+					return false;
+			}
+			mRecvTask.roomFreed();
+			mNextMsgOffset = 0;
+			// Skip over frames that turn out to hold no messages at all
+			if(!nextMessage()) {
+				mLastRecvData.release();
+				mLastRecvData = null;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies as much of the current message as fits into an array and puts
+	 * its addresses in a Transmission. The only copy a frame's data gets is
+	 * this one. Copying through the packet works for heap and off-heap 
+	 * frames alike.
+	 * @param t Where the addresses go
+	 * @param dest Where the data goes
+	 * @param offset Offset into dest
+	 * @param room Most bytes to copy
+	 * @return Number of bytes copied
+	 */
+	private int copyMessage(Transmission t, byte[] dest, int offset, int room) {
+		t.setDestAddr(mLastRecvData.getDestAddr());
+		t.setSourceAddr(mLastRecvData.getSrcAddr());
+		int len = Math.min(mMsgLen - mLastRecvDataOffset, room);
+		mLastRecvData.copyData(mMsgOffset + mLastRecvDataOffset, dest, offset, 
+				len);
+		consumed(len);
+		return len;
+	}
+
+	/**
+	 * Moves past bytes of the current message that have been handed out. 
+	 * Once it's all gone we move on to the next message, consuming the 
+	 * packet if that was its last one.
+	 * @param len Number of bytes handed out
+	 */
+	private void consumed(int len) {
+		mLastRecvDataOffset = mLastRecvDataOffset + len;
+		if(mLastRecvDataOffset < mMsgLen)
+			return;
+		mLastRecvDataOffset = 0;
+		if(!nextMessage()) {
+			mLastRecvData.release();
+			mLastRecvData = null;
+		}
+	}
+
+	/**
+	 * Points mMsgOffset and mMsgLen at the next message in mLastRecvData.
+	 * @return False if the frame has no messages left
+	 */
+	private boolean nextMessage() {
+		if(mNextMsgOffset < 0)
+			return false;
+		int end = mLastRecvData.getDataLen();
+		if(!mLastRecvData.isAggregate()) {
+			// The whole payload is a single message
+			mMsgOffset = 0;
+			mMsgLen = end;
+			mNextMsgOffset = -1;
+			return true;
+		}
+		if(mNextMsgOffset == 0)
+			mNextMsgOffset = Packet.EXT_CONTROL_SIZE;
+		if(mNextMsgOffset + Packet.SUBFRAME_HEADER_SIZE > end) {
+			mNextMsgOffset = -1;
+			return false;
+		}
+		int len = mLastRecvData.getDataShort(mNextMsgOffset) & 0xFFFF;
+		mMsgOffset = mNextMsgOffset + Packet.SUBFRAME_HEADER_SIZE;
+		// Don't trust a length that runs past the end of the frame
+		mMsgLen = Math.min(len, end - mMsgOffset);
+		mNextMsgOffset = mMsgOffset + mMsgLen;
+		return true;
+	}
 	
 	/**
 	 * Sets the status code and prints a message.
@@ -321,6 +880,44 @@ public class LinkLayer implements Dot11Interface {
 		}
 	}
 
+	/**
+	 * Moves data frames into an off-heap arena with the given number of 
+	 * MTU-sized slots, or back onto the heap if slots is 0 or less. Outgoing
+	 * and received data frames share the arena. Frames already queued stay
+	 * where they are and go back to their old pool, which is then dropped.
+	 * @param slots Number of frames the arena can hold
+	 * @return False if an arena that size can't be had, in which case the 
+	 *         frames stay where they were
+	 */
+	private boolean setFrameArena(int slots) {
+		if(slots <= 0) {
+			mDataPool = 
+				new FramePool("data", DATA_POOL_SIZE, Packet.MAX_DATA_BYTES);
+			mRecvTask.setDataPool(null);
+			mArenaSlots = 0;
+			Log.i(TAG, "Data frames now live on the heap");
+		} else {
+			if(slots > FrameArena.MAX_SLOTS) {
+				Log.e(TAG, "Frame arena can have at most " 
+						+ FrameArena.MAX_SLOTS + " slots");
+				return false;
+			}
+			FramePool pool;
+			try {
+				pool = new FramePool("arena", new FrameArena(slots));
+			} catch (OutOfMemoryError e) {
+				Log.e(TAG, "Not enough memory for a " + slots 
+						+ " slot frame arena");
+				return false;
+			}
+			mDataPool = pool;
+			mRecvTask.setDataPool(pool);
+			mArenaSlots = slots;
+			Log.i(TAG, "Data frames now live in a " + slots + " slot arena");
+		}
+		return true;
+	}
+
 	/**
 	 * Queues up packets for a round trip time test
 	 */
@@ -333,6 +930,7 @@ public class LinkLayer implements Dot11Interface {
 			try {
 				// Block until there's room in the queue.
 				mSendDataQueue.put(dataPacket);
+				mScheduler.signal();
 			} catch (InterruptedException e) {
 				Log.e(TAG, "Unable to queue packet: " + e.getMessage());
 			}
@@ -0,0 +1,98 @@
+package wifi;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parks the MAC thread until its next deadline, or until something it cares
+ * about happens sooner: a frame is queued for sending, an ACK arrives, or an
+ * outgoing ACK is queued. Replaces polling the queues and the clock every
+ * tenth of a slot and spinning on 50 unit boundaries, so an idle station
+ * costs next to nothing. Deadlines are in NSyncClock units. Wakeups are only
+ * hints; the MAC rechecks everything whenever it wakes.
+ */
+public class MacScheduler {
+
+	// Frame starts line up on multiples of this many clock units
+	public static final long BOUNDARY = 50;
+	// How far past a boundary still counts as being on it
+	public static final long EPSILON = 2;
+
+	private NSyncClock mClock;
+	// The thread that parks here, i.e. SendTask's
+	private volatile Thread mOwner;
+
+	/**
+	 * @param clock The clock deadlines are measured against
+	 */
+	public MacScheduler(NSyncClock clock) {
+		mClock = clock;
+	}
+
+	/**
+	 * Makes the calling thread the one signal() wakes. Called by the MAC
+	 * thread before it first parks.
+	 */
+	public void attach() {
+		mOwner = Thread.currentThread();
+	}
+
+	/**
+	 * Wakes the MAC thread if it's parked, or keeps its next park from
+	 * blocking if it isn't, so a signal is never lost.
+	 */
+	public void signal() {
+		Thread owner = mOwner;
+		if(owner != null)
+			LockSupport.unpark(owner);
+	}
+
+	/**
+	 * Parks until the deadline or a signal, whichever comes first. May also
+	 * return early for no reason at all, like any park.
+	 * @param deadline Clock time to wake up at, or Long.MAX_VALUE to wait for
+	 *        a signal alone
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	public void awaitUntil(long deadline) throws InterruptedException {
+		long wait = deadline - mClock.time();
+		if(deadline == Long.MAX_VALUE) {
+			LockSupport.park(this);
+		} else if(wait > 0) {
+			// Far off deadlines would overflow into a negative park
+			wait = Math.min(wait, Long.MAX_VALUE / NSyncClock.NANO_PER_CLOCK_UNIT);
+			LockSupport.parkNanos(this, wait * NSyncClock.NANO_PER_CLOCK_UNIT);
+		}
+		if(Thread.interrupted())
+			throw new InterruptedException();
+	}
+
+	/**
+	 * Parks until the deadline, no matter what signals come in meanwhile
+	 * @param deadline Clock time to wake up at
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	public void sleepUntil(long deadline) throws InterruptedException {
+		while(mClock.time() < deadline)
+			awaitUntil(deadline);
+		// Any signal we slept through still needs handling, so pass it on
+		signal();
+	}
+
+	/**
+	 * @param time A clock time
+	 * @return True if the time is within EPSILON of a 50 unit boundary
+	 */
+	public static boolean onBoundary(long time) {
+		return time % BOUNDARY <= EPSILON;
+	}
+
+	/**
+	 * @param time A clock time
+	 * @return The time itself if it's on a boundary, else the next boundary
+	 */
+	public static long nextBoundary(long time) {
+		if(onBoundary(time))
+			return time;
+		return time - (time % BOUNDARY) + BOUNDARY;
+	}
+}
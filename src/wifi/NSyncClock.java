@@ -28,6 +28,8 @@ public class NSyncClock {
 
 	// For keeping track of RTT times
 	private ConcurrentHashMap<Integer, TimerWrapper> mTimers;
+	// Per-peer RTT estimates, for ACK timeouts
+	private RttEstimator mRtt;
 	
 	public static final long NANO_SEC_PER_MS = 1000000L;
 	
@@ -86,9 +88,11 @@ public class NSyncClock {
 	/**
 	 * Grace this world with NSync...Clock.
 	 * @param macDonalds
+	 * @param stations - where per-peer round trip estimates are kept
 	 */
-	public NSyncClock(short macDonalds) {
+	public NSyncClock(short macDonalds, StationTable stations) {
 		mTimers = new ConcurrentHashMap<Integer, TimerWrapper>();
+		mRtt = new RttEstimator(stations, ackWaitEst());
 		mOurMAC = macDonalds;
 		mBeaconInterval = new AtomicLong(-1L);
 		mOffset = new AtomicLong(0L);
@@ -211,13 +215,24 @@ public class NSyncClock {
 	}
 	
 	/**
-	 * Returns the ack wait time estimate in clock units
+	 * Returns the ack wait time estimate in clock units, for peers we
+	 * haven't measured yet
 	 * @return
 	 */
 	public long ackWaitEst() {
 		return (RTT_EST_MILLIS + A_SLOT_TIME) / CLOCK_UNIT_PER_MILLIS;
 	}
 	
+	/**
+	 * Returns how long to wait for an ACK from the specified peer, in clock
+	 * units, going by the round trip times measured to it so far
+	 * @param dest
+	 * @return
+	 */
+	public long ackWaitEst(short dest) {
+		return mRtt.rto(dest);
+	}
+	
 	/**
 	 * Returns an excessively large RTT estimation to avoid unnecessary resends
 	 * during an RTT test
@@ -237,6 +252,38 @@ public class NSyncClock {
 		Log.d(TAG, "Logging " + packetSeq + " start time: " + time);
 	}
 	
+	/**
+	 * Logs the transmit time of a data packet, for estimating the round trip
+	 * time to its destination
+	 * @param dest
+	 * @param packetSeq
+	 * @param retry - true if the packet has been transmitted before, in which
+	 *        case its ACK won't be used as a sample
+	 */
+	public void logTransmitTime(short dest, int packetSeq, boolean retry) {
+		mRtt.onTransmit(dest, packetSeq, retry, time());
+	}
+	
+	/**
+	 * Logs an ack received from the specified peer, for estimating the round
+	 * trip time to it
+	 * @param src
+	 * @param packetSeq
+	 * @return The round trip time sampled, or -1 if the ack gave none
+	 */
+	public long logRecvAckTime(short src, int packetSeq) {
+		return mRtt.onAck(src, packetSeq, time());
+	}
+	
+	/**
+	 * Logs that we gave up waiting for an ack from the specified peer, which
+	 * backs off its ack wait time
+	 * @param dest
+	 */
+	public void logAckTimeout(short dest) {
+		mRtt.onTimeout(dest);
+	}
+	
 	/**
 	 * Logs an ack received time for a packet with the specified sequence number
 	 * @param packetSeq
@@ -2,7 +2,7 @@ package wifi;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.zip.CRC32;
+import java.util.ArrayList;
 
 /**
  * Represents an 802.11~ packet.
@@ -25,21 +25,73 @@ public class Packet {
 	public static final int CTRL_DATA_CODE = 0;
 	public static final int CTRL_ACK_CODE = 1;
 	public static final int CTRL_BEACON_CODE = 2;
+	// Data whose payload starts with an extended control field. Unused by the
+	// base 802.11~ spec, so other stacks just ignore these.
+	public static final int CTRL_EXT_DATA_CODE = 3;
+
+	// Extended control field, the first two payload bytes of an ext data frame
+	public static final int EXT_CONTROL_SIZE = 2;
+	// Payload is a run of subframes, each a 2 byte length and then the data
+	public static final int EXT_AGGREGATE = 0x8000;
+	public static final int SUBFRAME_HEADER_SIZE = 2;
+	// Part of a block ACK burst: record it, but only ACK the burst's last frame
+	public static final int EXT_NO_ACK = 0x4000;
+	// Most data an ext data frame carries once the control field is in
+	public static final int MAX_EXT_DATA_BYTES = MAX_DATA_BYTES - EXT_CONTROL_SIZE;
+	// Block ACK payload: newest seq num received, then a 64-bit bitmap where
+	// bit k means (newest - k) was received
+	public static final int BLOCK_ACK_SIZE = 10;
+	// More fragments of the same message follow this one
+	public static final int EXT_MORE_FRAGMENTS = 0x2000;
+	// The control field's low byte numbers a message's fragments from 0
+	public static final int EXT_FRAGMENT_MASK = 0x00FF;
+	public static final int MAX_FRAGMENTS = EXT_FRAGMENT_MASK + 1;
+	// Fragment ACK payload: the fragment's control field, echoed back
+	public static final int FRAGMENT_ACK_SIZE = 2;
+	// Part of a selective repeat window: the receiver delivers it in order
+	public static final int EXT_IN_ORDER = 0x1000;
+	// The sender has nothing older than this frame outstanding, so the
+	// receiver can stop waiting for anything before it
+	public static final int EXT_WINDOW_START = 0x0800;
+	// Flow control byte at the end of an ACK payload. Every other ACK payload
+	// is even-length, so an odd length means it's there. Its low bits are 
+	// how many more frames the receiver has room for.
+	public static final int FLOW_CONTROL_SIZE = 1;
+	public static final int FLOW_WINDOW_MASK = 0x7F;
+	// The receiver had no room for the frame the ACK names and dropped it
+	public static final int FLOW_REFUSED = 0x80;
 	
 	private static final int INVALID_PACKET = -1;
 
 	// Header sizes in bytes
-	private static final int CONTROL_SIZE = 2;
-	private static final int DEST_ADDR_SIZE = 2;
-	private static final int SRC_ADDR_SIZE = 2;	
-	private static final int HEADER_SIZE = 6;
-	private static final int CRC_SIZE = 4;
+	static final int CONTROL_SIZE = 2;
+	static final int DEST_ADDR_SIZE = 2;
+	static final int SRC_ADDR_SIZE = 2;	
+	static final int HEADER_SIZE = 6;
+	static final int CRC_SIZE = 4;
+	// Largest frame we'll build or accept, header and CRC included
+	public static final int MAX_FRAME_BYTES = 
+			HEADER_SIZE + MAX_DATA_BYTES + CRC_SIZE;
 	
 	private ByteBuffer mPacket; // All packet bytes wrapped up in a buffer
 	private int mPacketSize; // Total packet length
 
-	private boolean mPacketInitialized;
+	// Pool this packet returns to on release(), or null if it isn't pooled
+	private FramePool mPool;
+	// The buffer this packet owns, which wrapped frames temporarily replace
+	private ByteBuffer mOwnBuffer;
+	// True while the packet sits unused in its pool
+	private boolean mInPool;
+
+	// True when the bytes have changed since the CRC field was last computed
+	private boolean mCRCDirty;
 	private long mTimeInstantiated;
+	// EDCA access category a data frame is sent under. It never goes over 
+	// the air, it only decides how we contend for the channel.
+	private int mAccessCategory = AccessCategory.AC_BE;
+	// Messages sent with sendAsync() whose outcome rides on this frame. 
+	// More than one once small sends are aggregated. Null until needed.
+	private ArrayList<Delivery> mDeliveries;
 	
 	/**
 	 * Convenience constructor for instantiating packets where sequence numbers 
@@ -68,21 +120,157 @@ public class Packet {
 	 */
 	public Packet(int type, short dest, short src, byte[] data, 
 			int len, short seqNum, long timeInstantiated) {
-		mTimeInstantiated = timeInstantiated;
 		// If len exceeds the size of the data buffer, add the entire buffer
-		int dataSize = Math.min(len, data.length);
+		this((FramePool) null, Math.min(len, data.length));
+		reset(type, dest, src, data, 0, len, seqNum, timeInstantiated);
+	}
+
+	/**
+	 * Constructor for pooled packets. Allocates a buffer big enough for the
+	 * largest frame the packet will hold, which reset() then fills in.
+	 * @param pool The pool this packet returns to, or null
+	 * @param maxDataBytes Largest data payload this packet will carry
+	 */
+	Packet(FramePool pool, int maxDataBytes) {
+		this(pool, ByteBuffer
+					.allocate(HEADER_SIZE + CRC_SIZE + maxDataBytes)
+					.order(ByteOrder.BIG_ENDIAN));
+	}
+
+	/**
+	 * Constructor for pooled packets backed by a buffer the pool provides,
+	 * e.g. a direct slot from a FrameArena.
+	 * @param pool The pool this packet returns to, or null
+	 * @param buffer The buffer to build frames in
+	 */
+	Packet(FramePool pool, ByteBuffer buffer) {
+		mPool = pool;
+		mInPool = (pool != null);
+		mOwnBuffer = buffer;
+		mPacket = mOwnBuffer;
+		mPacketSize = HEADER_SIZE + CRC_SIZE;
+		mCRCDirty = true;
+	}
+
+	/**
+	 * Builds a packet around an array that already holds its data, after
+	 * HEADER_SIZE bytes left free for the header and with CRC_SIZE bytes to
+	 * spare behind it, e.g. a message RecvTask reassembled. The array isn't
+	 * copied, so it belongs to the packet from now on.
+	 * @param type Packet type
+	 * @param dest Destination MAC address
+	 * @param src Source MAC address
+	 * @param frame The array
+	 * @param len Data length
+	 * @param seqNum Sequence number
+	 * @param timeInstantiated The time of this packet's instantiation
+	 * @return The packet
+	 */
+	static Packet around(int type, short dest, short src, byte[] frame, 
+			int len, short seqNum, long timeInstantiated) {
+		Packet p = new Packet((FramePool) null, 
+				ByteBuffer.wrap(frame).order(ByteOrder.BIG_ENDIAN));
+		p.mPacketSize = HEADER_SIZE + CRC_SIZE + len;
+		p.mTimeInstantiated = timeInstantiated;
+		p.mPacket.put(0, (byte) 0);
+		p.buildHeader(type, dest, src, seqNum);
+		return p;
+	}
+
+	/**
+	 * Rebuilds this packet in place around new header values and data.
+	 * @param type Packet type
+	 * @param dest Destination MAC address
+	 * @param src Source MAC address
+	 * @param data Array holding the packet's data
+	 * @param offset Offset of the first data byte within the array
+	 * @param len Data length
+	 * @param seqNum Sequence number
+	 * @param timeInstantiated The time of this packet's instantiation
+	 */
+	void reset(int type, short dest, short src, byte[] data, int offset,
+			int len, short seqNum, long timeInstantiated) {
+		mInPool = false;
+		mPacket = mOwnBuffer;
+		mTimeInstantiated = timeInstantiated;
+		// Never copy more than the data array or our own buffer can hold
+		int dataSize = Math.min(len, data.length - offset);
+		dataSize = Math.min(dataSize, 
+				mOwnBuffer.capacity() - HEADER_SIZE - CRC_SIZE);
 
 		mPacketSize = HEADER_SIZE + CRC_SIZE + dataSize;
-		mPacket = ByteBuffer.allocate(mPacketSize).order(ByteOrder.BIG_ENDIAN);
+		// The CRC is computed once, just before transmission, rather than
+		// on every change between now and then
+		mCRCDirty = true;
 
+		// buildHeader ORs bits into the first byte, so clear out the old ones
+		mPacket.put(0, (byte) 0);
 		buildHeader(type, dest, src, seqNum);
 		
 		// Insert data into packet buffer.
-		for(int i = 0; i < dataSize; i++)
-			mPacket.put(i + HEADER_SIZE, data[i]);
+		mPacket.position(HEADER_SIZE);
+		mPacket.put(data, offset, dataSize);
+	}
 
-		mPacketInitialized = true;
-		computeAndSetCRC();
+	/**
+	 * Rebuilds this packet in place as an ext data frame.
+	 * @param control The extended control field
+	 * @param dest Destination MAC address
+	 * @param src Source MAC address
+	 * @param data Array holding the packet's data
+	 * @param offset Offset of the first data byte within the array
+	 * @param len Data length, not counting the control field
+	 * @param seqNum Sequence number
+	 * @param timeInstantiated The time of this packet's instantiation
+	 */
+	void resetExt(int control, short dest, short src, byte[] data, int offset,
+			int len, short seqNum, long timeInstantiated) {
+		reset(CTRL_EXT_DATA_CODE, dest, src, data, offset, 0, seqNum, 
+				timeInstantiated);
+		int dataSize = Math.min(len, data.length - offset);
+		dataSize = Math.min(dataSize, mOwnBuffer.capacity() 
+				- HEADER_SIZE - EXT_CONTROL_SIZE - CRC_SIZE);
+		mPacketSize = mPacketSize + EXT_CONTROL_SIZE + dataSize;
+		mPacket.putShort(HEADER_SIZE, (short) control);
+		mPacket.position(HEADER_SIZE + EXT_CONTROL_SIZE);
+		mPacket.put(data, offset, dataSize);
+	}
+
+	/**
+	 * Points this packet at an already validated frame. Heap packets wrap the
+	 * frame without copying it. Packets backed by direct memory copy it into
+	 * their own buffer instead, so a backlog of them stays off the heap.
+	 * @param frame An array of bytes holding a valid frame
+	 * @param timeInstantiated The time of this packet's instantiation
+	 */
+	void rewrap(byte[] frame, long timeInstantiated) {
+		mInPool = false;
+		mPacketSize = frame.length;
+		if(mOwnBuffer.isDirect() && frame.length <= mOwnBuffer.capacity()) {
+			mPacket = mOwnBuffer;
+			mPacket.position(0);
+			mPacket.put(frame);
+		} else {
+			mPacket = ByteBuffer.wrap(frame).order(ByteOrder.BIG_ENDIAN);
+		}
+		mCRCDirty = false;
+		mTimeInstantiated = timeInstantiated;
+	}
+
+	/**
+	 * Hands this packet back to the pool it came from. Does nothing for
+	 * packets that aren't pooled. The packet must not be used afterwards.
+	 */
+	public void release() {
+		// A frame dropped before SendTask retired it never got through
+		completeDeliveries(false);
+		if(mPool != null && !mInPool) {
+			mInPool = true;
+			// Let go of any frame we were wrapping
+			mPacket = mOwnBuffer;
+			mAccessCategory = AccessCategory.AC_BE;
+			mPool.recycle(this);
+		}
 	}
 
 	/**
@@ -96,7 +284,7 @@ public class Packet {
 	private Packet(byte[] packet, long timeInstantiated) {
 		mPacketSize = packet.length;
 		mPacket = ByteBuffer.wrap(packet).order(ByteOrder.BIG_ENDIAN);
-		mPacketInitialized = true;
+		mCRCDirty = false;
 		mTimeInstantiated = timeInstantiated;
 	}
 
@@ -135,7 +323,8 @@ public class Packet {
 	}
 	
 	/**
-	 * Set's the packet sequence number and updates the CRC if specified. The
+	 * Set's the packet sequence number and marks the CRC for recomputation if
+	 * specified. The
 	 * CRC flag should always be true if this call is coming from the public API.
 	 * However, internally, there may be times where we want to set a new 
 	 * sequence number but don't need to update the CRC (e.g the constructor)
@@ -161,16 +350,17 @@ public class Packet {
 		
 		// Update the CRC if specified
 		if(updateCRC)
-			computeAndSetCRC();
+			mCRCDirty = true;
 	}
 	
 	/**
-	 * Sets the data to the specified byte array and updates the CRC
+	 * Sets the data to the specified byte array and marks the CRC for 
+	 * recomputation
 	 * @param data The new data
 	 */
 	public void setData(byte[] data) {
 		int size = HEADER_SIZE + data.length + CRC_SIZE;
-		if(size != mPacketSize) {
+		if(size > mPacket.capacity()) {
 			// resize buffer only if we need to
 			ByteBuffer newBuffer = ByteBuffer
 									.allocate(size)
@@ -181,11 +371,12 @@ public class Packet {
 			newBuffer.put(header);
 			mPacket = newBuffer;
 		}
+		mPacketSize = size;
 		mPacket.position(HEADER_SIZE);
 		mPacket.put(data);
 		
-		// Update the CRC
-		computeAndSetCRC();
+		// The payload changed, so the CRC has to be recomputed from scratch
+		mCRCDirty = true;
 	}
 
 	/**
@@ -197,7 +388,8 @@ public class Packet {
 	}
 	
 	/**
-	 * Sets the retry flag on the packet and updates the CRC if specified. The 
+	 * Sets the retry flag on the packet and marks the CRC for recomputation if
+	 * specified. The 
 	 * CRC flag should always be true if this is getting called from the public 
 	 * API. But internally, there may be times where we want to change retry flag
 	 * but don't want to bother with the CRC
@@ -212,24 +404,28 @@ public class Packet {
 		
 		// Update the CRC if specified
 		if(updateCRC)
-			computeAndSetCRC();
+			mCRCDirty = true;
 	}
 
 	/**
-	 * Computes and sets the new CRC
+	 * Computes and sets the CRC if anything has changed since it was last
+	 * computed. SendTask calls this once per frame, before the
+	 * frame starts contending for the channel, so checksumming never eats 
+	 * into IFS or backoff timing. Cheap to call again when nothing changed.
 	 */
-	private void computeAndSetCRC() {
-		// Only recompute CRC if packet has been fully initialized,
-		if(mPacketInitialized) {
+	public void ensureCRC() {
+		if(mCRCDirty) {
 			mPacket.putInt(mPacketSize - CRC_SIZE, computeCRC(this));
+			mCRCDirty = false;
 		}
 	}
-	
+
 	/**
 	 * Returns the packet as a byte array
 	 * @return The packet in a byte array
 	 */
 	public byte[] getBytes() {
+		ensureCRC();
 		mPacket.position(0);
 
 		// Copy bytes into a byte array
@@ -238,6 +434,81 @@ public class Packet {
 
 		return packetBytes;
 	}
+
+	/**
+	 * Copies the whole frame into the given array, which must hold at least 
+	 * size() bytes. Lets callers reuse one array instead of getBytes().
+	 * @param dest The array to copy into
+	 */
+	public void copyBytes(byte[] dest) {
+		ensureCRC();
+		mPacket.position(0);
+		mPacket.get(dest, 0, mPacketSize);
+	}
+
+	/**
+	 * Copies the whole frame into a buffer at its position, and advances the
+	 * position past it. The buffer must have size() bytes remaining.
+	 * @param dest The buffer to copy into, heap or direct
+	 */
+	public void copyBytes(ByteBuffer dest) {
+		ensureCRC();
+		int pos = dest.position();
+		dest.put(pos, mPacket, 0, mPacketSize);
+		dest.position(pos + mPacketSize);
+	}
+
+	/**
+	 * Copies part of the data payload into the given array. Works whether the
+	 * packet lives on the heap or in direct memory.
+	 * @param from Offset into the payload to start copying from
+	 * @param dest Destination array
+	 * @param destOffset Offset into the destination array
+	 * @param len Number of bytes to copy
+	 * @return The number of bytes copied
+	 */
+	public int copyData(int from, byte[] dest, int destOffset, int len) {
+		int toCopy = Math.min(len, getDataLen() - from);
+		if(toCopy <= 0)
+			return 0;
+		mPacket.position(HEADER_SIZE + from);
+		mPacket.get(dest, destOffset, toCopy);
+		return toCopy;
+	}
+
+	/**
+	 * Copies part of the data payload into a buffer at its position, and
+	 * advances the position past it
+	 * @param from Offset into the payload to start copying from
+	 * @param dest The buffer to copy into, heap or direct
+	 * @param len Most bytes to copy
+	 * @return The number of bytes copied, no more than dest has room for
+	 */
+	public int copyData(int from, ByteBuffer dest, int len) {
+		int toCopy = Math.min(Math.min(len, getDataLen() - from), 
+				dest.remaining());
+		if(toCopy <= 0)
+			return 0;
+		int pos = dest.position();
+		dest.put(pos, mPacket, HEADER_SIZE + from, toCopy);
+		dest.position(pos + toCopy);
+		return toCopy;
+	}
+
+	/**
+	 * @return The array backing this packet. Not a copy, so handle with care.
+	 * Only valid for heap packets, direct packets have no backing array.
+	 */
+	byte[] array() {
+		return mPacket.array();
+	}
+
+	/**
+	 * @return Offset of this packet's first byte within array()
+	 */
+	int arrayOffset() {
+		return mPacket.arrayOffset();
+	}
 	
 	/**
 	 * Gets the packet type
@@ -249,6 +520,113 @@ public class Packet {
 		return type;
 	}
 	
+	/**
+	 * @param type A packet type code
+	 * @return True if the type carries data for the layer above
+	 */
+	public static boolean isDataType(int type) {
+		return type == CTRL_DATA_CODE || type == CTRL_EXT_DATA_CODE;
+	}
+
+	/**
+	 * @return True if packet carries data for the layer above
+	 */
+	public boolean isData() {
+		return isDataType(getType());
+	}
+
+	/**
+	 * @return The extended control field, or 0 if this isn't an ext data frame
+	 */
+	public int getExtControl() {
+		if(getType() != CTRL_EXT_DATA_CODE || getDataLen() < EXT_CONTROL_SIZE)
+			return 0;
+		return getDataShort(0) & 0xFFFF;
+	}
+
+	/**
+	 * Sets the extended control field of an ext data frame and marks the 
+	 * CRC for recomputation. Does nothing to other frame types.
+	 * @param control The new control field
+	 */
+	public void setExtControl(int control) {
+		if(getType() != CTRL_EXT_DATA_CODE || getDataLen() < EXT_CONTROL_SIZE)
+			return;
+		mPacket.putShort(HEADER_SIZE, (short) control);
+		mCRCDirty = true;
+	}
+
+	/**
+	 * @return True if the payload is a run of aggregated subframes
+	 */
+	public boolean isAggregate() {
+		return (getExtControl() & EXT_AGGREGATE) != 0;
+	}
+
+	/**
+	 * @return True if the receiver should deliver this frame in sequence order
+	 */
+	public boolean isInOrder() {
+		return (getExtControl() & EXT_IN_ORDER) != 0;
+	}
+
+	/**
+	 * @return True if nothing older than this frame is still on its way
+	 */
+	public boolean isWindowStart() {
+		return (getExtControl() & EXT_WINDOW_START) != 0;
+	}
+
+	/**
+	 * @return True if this frame is one fragment of a larger message
+	 */
+	public boolean isFragment() {
+		return (getExtControl() & (EXT_MORE_FRAGMENTS | EXT_FRAGMENT_MASK)) != 0;
+	}
+
+	/**
+	 * @return True if more fragments of the same message follow this one
+	 */
+	public boolean hasMoreFragments() {
+		return (getExtControl() & EXT_MORE_FRAGMENTS) != 0;
+	}
+
+	/**
+	 * @return This fragment's position within its message, from 0
+	 */
+	public int getFragmentNumber() {
+		return getExtControl() & EXT_FRAGMENT_MASK;
+	}
+
+	/**
+	 * Reads a big-endian short out of the data payload
+	 * @param index Offset into the payload
+	 * @return The short
+	 */
+	public short getDataShort(int index) {
+		return mPacket.getShort(HEADER_SIZE + index);
+	}
+
+	/**
+	 * @return The flow control byte ending an ACK's payload, or -1 if it
+	 *         doesn't have one
+	 */
+	public int getFlowControl() {
+		int len = getDataLen();
+		if(len % 2 == 0)
+			return -1;
+		return mPacket.get(HEADER_SIZE + len - FLOW_CONTROL_SIZE) & 0xFF;
+	}
+
+	/**
+	 * Reads a big-endian long out of the data payload
+	 * @param index Offset into the payload
+	 * @return The long
+	 */
+	public long getDataLong(int index) {
+		return mPacket.getLong(HEADER_SIZE + index);
+	}
+
 	/**
 	 * @return True if packet is beacon, false otherwise
 	 */
@@ -256,12 +634,66 @@ public class Packet {
 		return (getType() == CTRL_BEACON_CODE);
 	}
 	
+	/**
+	 * @return The EDCA access category this packet is sent under
+	 */
 	public long getPriority() {
-		return (long) getType();
+		return (long) mAccessCategory;
+	}
+	
+	/**
+	 * @return The EDCA access category this packet is sent under
+	 */
+	public int getAccessCategory() {
+		return mAccessCategory;
 	}
 	
 	/**
-	 * Gets the IFS (Inter-Frame Space) time for this packet type
+	 * Sets the EDCA access category this packet is sent under
+	 * @param ac One of the AccessCategory constants
+	 */
+	public void setAccessCategory(int ac) {
+		mAccessCategory = ac;
+	}
+	
+	/**
+	 * Ties a message's outcome to this frame
+	 * @param d The message's delivery, already counting this frame
+	 */
+	void addDelivery(Delivery d) {
+		if(mDeliveries == null)
+			mDeliveries = new ArrayList<Delivery>(1);
+		mDeliveries.add(d);
+	}
+	
+	/**
+	 * Moves this frame's deliveries over to another, e.g. when this frame's 
+	 * data is aggregated into it
+	 * @param p The frame that will carry them
+	 */
+	void moveDeliveriesTo(Packet p) {
+		if(mDeliveries == null)
+			return;
+		for(int i = 0; i < mDeliveries.size(); i++)
+			p.addDelivery(mDeliveries.get(i));
+		mDeliveries.clear();
+	}
+	
+	/**
+	 * Reports this frame's outcome to every message riding on it
+	 * @param delivered True if it was acknowledged, false if given up on
+	 */
+	void completeDeliveries(boolean delivered) {
+		if(mDeliveries == null)
+			return;
+		for(int i = 0; i < mDeliveries.size(); i++)
+			mDeliveries.get(i).frameDone(delivered);
+		mDeliveries.clear();
+	}
+	
+	/**
+	 * Gets the IFS (Inter-Frame Space) time for this packet type. Data waits
+	 * the AIFS of its access category.
 	 * @return IFS
 	 */
 	public long getIFS() {
@@ -271,7 +703,8 @@ public class Packet {
 			case CTRL_ACK_CODE:
 				return SIFS;
 			case CTRL_DATA_CODE:
-				return DIFS;
+			case CTRL_EXT_DATA_CODE:
+				return AccessCategory.aifs(mAccessCategory);
 			default:
 				return DIFS;
 		}
@@ -314,6 +747,15 @@ public class Packet {
 	public int getDataLen() {
 		return mPacketSize - HEADER_SIZE - CRC_SIZE;
 	}
+
+	/**
+	 * @return The largest payload reset() can fit in this packet's own buffer
+	 */
+	int getMaxDataLen() {
+		if(mOwnBuffer == null)
+			return 0;
+		return mOwnBuffer.capacity() - HEADER_SIZE - CRC_SIZE;
+	}
 	
 	/**
 	 * @return This packet's size in bytes
@@ -329,8 +771,8 @@ public class Packet {
 		byte highByte = mPacket.get(0);
 		byte lowByte = mPacket.get(1);
 		
-		// Directly assign the low byte
-		short seqNum = lowByte;
+		// Mask the low byte so it isn't sign extended
+		short seqNum = (short) (lowByte & 0xFF);
 
 		// Shift the high byte up and mask the leading 4 control bits,
 		// to get the high 4 bits
@@ -352,8 +794,8 @@ public class Packet {
 			data = new byte[0];
 		} else {
 			data = new byte[getDataLen()];
-			for (int i = 0; i < getDataLen(); i++)
-	         data[i] = mPacket.get(i+HEADER_SIZE); 
+			mPacket.position(HEADER_SIZE);
+			mPacket.get(data);
 		}
 		return data;
 	}
@@ -362,6 +804,7 @@ public class Packet {
 	 * @return This packet's CRC value
 	 */
 	public int getCRC() {
+		ensureCRC();
 		return mPacket.getInt(mPacketSize-CRC_SIZE);
 	}
 	
@@ -382,13 +825,8 @@ public class Packet {
 	 * @return int CRC of packet
 	 */
 	public static int computeCRC(Packet p) {
-		// As it turns out, we need to create a new CRC32 object each time
-		// we compute a crc, the update method does something screwy
-		// TODO figure out how to use update method correctly
-		CRC32 crc = new CRC32();
-		byte[] packetBytes = p.getBytes();
-		crc.update(packetBytes, 0, packetBytes.length - CRC_SIZE);
-		return (int) crc.getValue();
+		// Checksum the backing buffer in place rather than copying it out
+		return CRCEngine.compute(p.mPacket, 0, p.size() - CRC_SIZE);
 	}
 
 	/**
@@ -418,10 +856,7 @@ public class Packet {
 	public static short parseDest(byte[] packet) {
 		short dest = INVALID_PACKET;
 		if(packet.length > CONTROL_SIZE + DEST_ADDR_SIZE)
-			dest = ByteBuffer
-					.wrap(packet, CONTROL_SIZE, DEST_ADDR_SIZE)
-					.order(ByteOrder.BIG_ENDIAN)
-					.getShort();
+			dest = FrameHeader.dest(packet, 0);
 		return dest;
 	}
 
@@ -0,0 +1,220 @@
+package wifi;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Microbenchmarks for the Packet hot path: building, parsing and checksumming
+ * frames and poking at their headers, across payload sizes from empty to
+ * Packet.MAX_DATA_BYTES. Each case is warmed up before it's measured, and
+ * reports time per operation (mean and spread over the measured iterations)
+ * along with bytes allocated per operation, so changes to the frame code can
+ * be judged on numbers instead of guesswork.
+ *
+ * Usage: PacketBenchmark [warmupIterations] [measuredIterations] [iterationMillis]
+ */
+public class PacketBenchmark {
+
+	private static final int DEFAULT_WARMUP_ITERATIONS = 5;
+	private static final int DEFAULT_MEASURED_ITERATIONS = 10;
+	private static final int DEFAULT_ITERATION_MILLIS = 200;
+	// Operations per timing batch, so reading the clock stays out of the way
+	private static final int BATCH = 1000;
+
+	private static final int[] PAYLOAD_SIZES =
+		{ 0, 64, 256, 1024, Packet.MAX_DATA_BYTES };
+
+	// Operations
+	private static final int CONSTRUCT = 0;
+	private static final int PARSE = 1;
+	private static final int PARSE_DEST = 2;
+	private static final int GET_DATA = 3;
+	private static final int GET_SEQ_NUM = 4;
+	private static final int SET_RETRY = 5;
+	private static final int SET_SEQ_NUM = 6;
+	private static final int COMPUTE_CRC = 7;
+	private static final String[] OP_NAMES = { "constructor", "parse",
+		"parseDest", "getData", "getSequenceNumber", "setRetry",
+		"setSequenceNumber", "computeCRC" };
+
+	private static final short DEST = 602;
+	private static final short SRC = 601;
+
+	// Results are folded in here so the JIT can't throw the work away
+	private static volatile long sSink;
+
+	// Fixture for the payload size being measured
+	private byte[] mData;
+	private byte[] mFrame;
+	private Packet mPacket;
+
+	private ThreadMXBean mThreads;
+	private boolean mCountAllocations;
+
+	public static void main(String[] args) {
+		int warmup = (args.length > 0) ?
+				Integer.parseInt(args[0]) : DEFAULT_WARMUP_ITERATIONS;
+		int measured = (args.length > 1) ?
+				Integer.parseInt(args[1]) : DEFAULT_MEASURED_ITERATIONS;
+		int millis = (args.length > 2) ?
+				Integer.parseInt(args[2]) : DEFAULT_ITERATION_MILLIS;
+		new PacketBenchmark().run(warmup, measured, millis);
+	}
+
+	public PacketBenchmark() {
+		mThreads = ManagementFactory.getThreadMXBean();
+		mCountAllocations =
+				mThreads instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) mThreads)
+					.isThreadAllocatedMemorySupported();
+		if(mCountAllocations)
+			((com.sun.management.ThreadMXBean) mThreads)
+				.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	/**
+	 * Runs every operation at every payload size and prints a results table
+	 * @param warmup Iterations to run and throw away first
+	 * @param measured Iterations to measure
+	 * @param millis Length of each iteration
+	 */
+	public void run(int warmup, int measured, int millis) {
+		System.out.println("Packet benchmarks: " + warmup + " warmup, "
+				+ measured + " measured iterations of " + millis + "ms");
+		System.out.println(String.format("%-18s %6s %12s %10s %12s",
+				"operation", "bytes", "ns/op", "+/-", "alloc B/op"));
+		for(int op = 0; op < OP_NAMES.length; op++) {
+			for(int size : PAYLOAD_SIZES) {
+				setUp(size);
+				for(int i = 0; i < warmup; i++)
+					iteration(op, millis);
+				double[] nanos = new double[measured];
+				double allocated = 0;
+				for(int i = 0; i < measured; i++) {
+					double[] result = iteration(op, millis);
+					nanos[i] = result[0];
+					allocated = allocated + result[1];
+				}
+				report(op, size, nanos, allocated / measured);
+			}
+		}
+		System.out.println("(sink " + sSink + ")");
+	}
+
+	/**
+	 * Builds the packet, frame and payload the operations work on
+	 * @param size Payload size in bytes
+	 */
+	private void setUp(int size) {
+		mData = new byte[size];
+		for(int i = 0; i < size; i++)
+			mData[i] = (byte) (i * 31);
+		mPacket = new Packet(Packet.CTRL_DATA_CODE, DEST, SRC, mData, size,
+				(short) 0, 0L);
+		mFrame = mPacket.getBytes();
+	}
+
+	/**
+	 * Runs one operation in batches for the given time
+	 * @param op The operation
+	 * @param millis How long to keep at it
+	 * @return Nanoseconds per op, then bytes allocated per op
+	 */
+	private double[] iteration(int op, int millis) {
+		long deadline = System.nanoTime() + millis * NSyncClock.NANO_PER_MILLIS;
+		long ops = 0;
+		long allocStart = allocatedBytes();
+		long start = System.nanoTime();
+		long now;
+		do {
+			sSink = sSink + batch(op, BATCH);
+			ops = ops + BATCH;
+			now = System.nanoTime();
+		} while(now < deadline);
+		long allocated = allocatedBytes() - allocStart;
+		return new double[] { (double) (now - start) / ops,
+				mCountAllocations ? (double) allocated / ops : -1 };
+	}
+
+	/**
+	 * Runs an operation n times. Each case gets its own loop so nothing but
+	 * the operation itself sits inside it.
+	 * @param op The operation
+	 * @param n Number of times to run it
+	 * @return Something derived from every result, for the sink
+	 */
+	private long batch(int op, int n) {
+		long sink = 0;
+		switch(op) {
+		case CONSTRUCT:
+			for(int i = 0; i < n; i++)
+				sink += new Packet(Packet.CTRL_DATA_CODE, DEST, SRC, mData,
+						mData.length, (short) i, 0L).size();
+			break;
+		case PARSE:
+			for(int i = 0; i < n; i++)
+				sink += Packet.parse(mFrame, i).size();
+			break;
+		case PARSE_DEST:
+			for(int i = 0; i < n; i++)
+				sink += Packet.parseDest(mFrame);
+			break;
+		case GET_DATA:
+			for(int i = 0; i < n; i++)
+				sink += mPacket.getData().length;
+			break;
+		case GET_SEQ_NUM:
+			for(int i = 0; i < n; i++)
+				sink += mPacket.getSequenceNumber();
+			break;
+		case SET_RETRY:
+			for(int i = 0; i < n; i++) {
+				mPacket.setRetry((i & 1) == 0);
+				sink += mPacket.getCRC();
+			}
+			break;
+		case SET_SEQ_NUM:
+			for(int i = 0; i < n; i++) {
+				mPacket.setSequenceNumber((short) (i & Packet.MAX_SEQ_NUM));
+				sink += mPacket.getCRC();
+			}
+			break;
+		case COMPUTE_CRC:
+			for(int i = 0; i < n; i++)
+				sink += Packet.computeCRC(mPacket);
+			break;
+		}
+		return sink;
+	}
+
+	/**
+	 * @return Bytes this thread has allocated so far, or 0 if unsupported
+	 */
+	private long allocatedBytes() {
+		if(!mCountAllocations)
+			return 0L;
+		return ((com.sun.management.ThreadMXBean) mThreads)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Prints one row of the results table
+	 * @param op The operation
+	 * @param size Payload size
+	 * @param nanos Nanoseconds per op for each measured iteration
+	 * @param allocated Mean bytes allocated per op, or negative if unknown
+	 */
+	private void report(int op, int size, double[] nanos, double allocated) {
+		double mean = 0;
+		for(double n : nanos)
+			mean = mean + n;
+		mean = mean / nanos.length;
+		double var = 0;
+		for(double n : nanos)
+			var = var + (n - mean) * (n - mean);
+		double stdDev = Math.sqrt(var / Math.max(1, nanos.length - 1));
+		String alloc = (allocated < 0) ? "n/a" : String.format("%.1f", allocated);
+		System.out.println(String.format("%-18s %6d %12.2f %10.2f %12s",
+				OP_NAMES[op], size, mean, stdDev, alloc));
+	}
+}
@@ -0,0 +1,190 @@
+package wifi;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * A reusable, read-only flyweight over a raw 802.11~ frame. Decodes the header
+ * fields straight out of the frame's bytes and exposes the payload in place,
+ * so nothing is copied until the data is handed to the layer above. A single
+ * view can be re-pointed at frame after frame with wrap().
+ */
+public class PacketView {
+
+	private static final int HEADER_SIZE = Packet.HEADER_SIZE;
+	private static final int CRC_SIZE = Packet.CRC_SIZE;
+
+	private byte[] mFrame; // The wrapped frame, never modified by the view
+	private int mOffset; // Offset of the frame within mFrame
+	private int mLength; // Total frame length, including header and CRC
+	private CRC32 mCRC;
+
+	/**
+	 * Creates an empty view. Call wrap() before reading anything out of it.
+	 */
+	public PacketView() {
+		mCRC = new CRC32();
+	}
+
+	/**
+	 * Points this view at a frame that fills the whole array
+	 * @param frame The raw frame
+	 * @return This view
+	 */
+	public PacketView wrap(byte[] frame) {
+		return wrap(frame, 0, frame.length);
+	}
+
+	/**
+	 * Points this view at a frame stored somewhere inside an array
+	 * @param frame The array holding the frame
+	 * @param offset Offset of the first header byte
+	 * @param length Total frame length, including header and CRC
+	 * @return This view
+	 */
+	public PacketView wrap(byte[] frame, int offset, int length) {
+		mFrame = frame;
+		mOffset = offset;
+		mLength = length;
+		return this;
+	}
+
+	/**
+	 * Points this view at the bytes backing a packet
+	 * @param p The packet
+	 * @return This view
+	 */
+	public PacketView wrap(Packet p) {
+		return wrap(p.array(), p.arrayOffset(), p.size());
+	}
+
+	/**
+	 * @return True if the frame is long enough to hold a header and a CRC
+	 */
+	public boolean hasHeader() {
+		return FrameHeader.hasHeader(mFrame, mOffset, mLength);
+	}
+
+	/**
+	 * Checks the frame's length and compares its CRC against one computed
+	 * over the wrapped bytes.
+	 * @return True if the frame is complete and uncorrupted, false otherwise
+	 */
+	public boolean isValid() {
+		if(!hasHeader())
+			return false;
+		mCRC.reset();
+		mCRC.update(mFrame, mOffset, mLength - CRC_SIZE);
+		return (int) mCRC.getValue() == getCRC();
+	}
+
+	/**
+	 * @return The frame type
+	 */
+	public int getType() {
+		return FrameHeader.type(mFrame, mOffset);
+	}
+
+	/**
+	 * @return True if the frame is a retry, false otherwise
+	 */
+	public boolean isRetry() {
+		return FrameHeader.isRetry(mFrame, mOffset);
+	}
+
+	/**
+	 * @return The frame's sequence number
+	 */
+	public short getSequenceNumber() {
+		return FrameHeader.seqNum(mFrame, mOffset);
+	}
+
+	/**
+	 * @return The frame's destination address
+	 */
+	public short getDestAddr() {
+		return FrameHeader.dest(mFrame, mOffset);
+	}
+
+	/**
+	 * @return The MAC address from which the frame originated
+	 */
+	public short getSrcAddr() {
+		return FrameHeader.src(mFrame, mOffset);
+	}
+
+	/**
+	 * @return The CRC carried in the frame's last four bytes
+	 */
+	public int getCRC() {
+		int i = mOffset + mLength - CRC_SIZE;
+		return ((mFrame[i] & 0xFF) << 24) | ((mFrame[i + 1] & 0xFF) << 16)
+				| ((mFrame[i + 2] & 0xFF) << 8) | (mFrame[i + 3] & 0xFF);
+	}
+
+	/**
+	 * @return The length of the frame's data payload
+	 */
+	public int getDataLen() {
+		return Math.max(0, mLength - HEADER_SIZE - CRC_SIZE);
+	}
+
+	/**
+	 * @return Offset of the first payload byte within array()
+	 */
+	public int getDataOffset() {
+		return mOffset + HEADER_SIZE;
+	}
+
+	/**
+	 * @return The wrapped array. Callers must treat it as read-only.
+	 */
+	public byte[] array() {
+		return mFrame;
+	}
+
+	/**
+	 * @return The total frame length, including header and CRC
+	 */
+	public int size() {
+		return mLength;
+	}
+
+	/**
+	 * Returns the payload as a read-only slice of the wrapped frame. The slice
+	 * shares the frame's bytes, so it is only good until the frame is reused.
+	 * @return The data payload, positioned at zero
+	 */
+	public ByteBuffer getDataSlice() {
+		return ByteBuffer.wrap(mFrame, getDataOffset(), getDataLen())
+				.slice()
+				.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Copies part of the payload into the given array
+	 * @param from Offset into the payload to start copying from
+	 * @param dest Destination array
+	 * @param destOffset Offset into the destination array
+	 * @param len Number of bytes to copy
+	 * @return The number of bytes copied
+	 */
+	public int copyData(int from, byte[] dest, int destOffset, int len) {
+		int toCopy = Math.min(len, getDataLen() - from);
+		if(toCopy <= 0)
+			return 0;
+		System.arraycopy(mFrame, getDataOffset() + from, dest, destOffset, toCopy);
+		return toCopy;
+	}
+
+	public String toString() {
+		return "PacketView. " +
+				"Type: " + getType() +
+				". Retry? " + isRetry() +
+				". Seq num: " + getSequenceNumber() +
+				". Src addr: " + getSrcAddr() +
+				". Dest addr: " + getDestAddr() +
+				". Data length: " + getDataLen() +
+				". CRC: " + getCRC();
+	}
+}
@@ -1,10 +1,8 @@
 package wifi;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.concurrent.BlockingQueue;
 
-import rf.RF;
-
 /**
  * The RecvThread class is responsible for monitoring the network and delivering
  * incoming packets to their appropriate destination within the Link Layer
@@ -14,84 +12,224 @@ import rf.RF;
 public class RecvTask implements Runnable {
 
 	private static final String TAG = "RecvTask";
+	// Most frames we take off the RF layer per wakeup
+	public static final int MAX_BATCH = 16;
 	
-	private RF mRF;
-	private short mHostAddr;
+	// Hands us frames from the RF layer, and parks us between batches
+	private RfReader mReader;
+	// Addresses we accept frames for: ours, broadcast, and any we've joined
+	private AddressFilter mAddressFilter;
 	private BlockingQueue<Packet> mRecvData;
-	private BlockingQueue<Packet> mRecvAck;
+	private AckTable mAckTable;
 	private BlockingQueue<Packet> mSendAckQueue;
-	// Maps source addresses to last sequence number received
-	private HashMap<Short, Short> mLastSeqs;
+	// Maps source addresses to the sequence numbers we've received from them
+	private Scoreboard[] mScoreboards;
+	// Maps source addresses to the fragmented message coming in from them
+	private Reassembly[] mReassemblies;
+	// Selective repeat frames waiting on a gap, by source address
+	private ReorderBuffer[] mReorderBuffers;
+	// Frames in the reorder buffers not yet delivered, held or ready
+	private int mReorderBacklog;
+	// Clock time the next held frames are given up waiting on
+	private long mReorderDeadline = Long.MAX_VALUE;
+	// Set when ready frames are waiting on room in the receive queue
+	private volatile boolean mWantsRoom;
+	// Per-source counters, and the slots the arrays above are indexed by
+	private StationTable mStations;
 	private NSyncClock mClock;
+	// Wakes SendTask when we hand it an ACK, either way, once per batch
+	private MacScheduler mScheduler;
+	// Reused for every incoming frame so filtering and validation don't copy
+	private PacketView mView;
+	// Where our outgoing ACKs and our received frames come from
+	private FramePool mAckPool;
+	private FramePool mRecvPool;
+	// Pool for received data frames when they should live off-heap, else null
+	private volatile FramePool mDataPool;
+
+	// Scratch space for ACK payloads, flow control byte included
+	private byte[] mAckBuf = 
+			new byte[Packet.BLOCK_ACK_SIZE + Packet.FLOW_CONTROL_SIZE];
+	// Frames taken off the RF layer in one go, null where filtered out
+	private byte[][] mBatch = new byte[MAX_BATCH][];
+	// Set when something in this batch needs SendTask's attention
+	private boolean mSignalPending;
 		
 	/**
 	 * Instantiates a RecvTask capable of monitoring the network and delivering
 	 * incoming packets to their appropriate destination within the Link Layer
-	 * @param rf The phyiscal layer
+	 * @param reader Takes frames off the physical layer for us
 	 * @param clock The synced clock
 	 * @param sendAckQueue Outgoing ACK queue
-	 * @param recvAck Incoming ACK queue
+	 * @param ackTable Where received ACKs are recorded for SendTask
 	 * @param recvData Incoming DATA queue
-	 * @param hostAddr This client's MAC address
+	 * @param ackPool Pool to build outgoing ACKs from
+	 * @param recvPool Pool of packets to wrap received frames in
+	 * @param addressFilter Addresses to accept frames for
+	 * @param scheduler SendTask's scheduler, signalled as ACKs come and go
+	 * @param stations Where per-source state is kept
 	 */
-	public RecvTask(RF rf, NSyncClock clock, BlockingQueue<Packet> sendAckQueue,
-			BlockingQueue<Packet> recvAck, BlockingQueue<Packet> recvData, short hostAddr) {
-		mRF = rf;
+	public RecvTask(RfReader reader, NSyncClock clock, BlockingQueue<Packet> sendAckQueue,
+			AckTable ackTable, BlockingQueue<Packet> recvData, 
+			FramePool ackPool, FramePool recvPool, AddressFilter addressFilter,
+			MacScheduler scheduler, StationTable stations) {
+		mReader = reader;
 		mClock = clock;
+		mScheduler = scheduler;
 		mRecvData = recvData;
-		mRecvAck = recvAck;
-		mHostAddr = hostAddr;
+		mAckTable = ackTable;
+		mAddressFilter = addressFilter;
 		mSendAckQueue = sendAckQueue;
-		mLastSeqs = new HashMap<Short, Short>();
+		mStations = stations;
+		mScoreboards = new Scoreboard[stations.capacity()];
+		mReassemblies = new Reassembly[stations.capacity()];
+		mReorderBuffers = new ReorderBuffer[stations.capacity()];
+		mView = new PacketView();
+		mAckPool = ackPool;
+		mRecvPool = recvPool;
 		Log.i(TAG, TAG + " initialized");
 	}
 	
 	@Override
 	public void run() {
 		Log.i(TAG, "RecvThread running");
+		mReader.attach();
 		while(true) {
-			byte[] recvTrans = mRF.receive(); // Block until we get a transmission
-			long recvTime = mClock.time(); // Time transmission was received
-			
-			// Don't bother parsing the whole packet unless it's really for us.
-			short packDest = Packet.parseDest(recvTrans);
-			Log.d(TAG, "RecvThread got a transmission for " + packDest);
-		   // Consume ACK and data packets that were sent to this host, and
-			// beacons specified by their universal address
-			if(packDest == mHostAddr || packDest == Packet.BEACON_MAC) {
-				Packet packet = Packet.parse(recvTrans, mClock.time());
-				// Packet is null if not valid (CRC's didn't match)
-				if(packet == null)
-					Log.i(TAG, "Throwing out a corrupted packet");
-				else {
-					int type = packet.getType();
-					if(type == Packet.CTRL_ACK_CODE) {
-						consumeAck(packet);
-					} else if(type == Packet.CTRL_BEACON_CODE) {
-						consumeBacon(packet, recvTime);
-					} else if(type == Packet.CTRL_DATA_CODE) {
-						consumeData(packet);
-					}
-				}
-			}	
+			// Wait for a transmission, then take whatever else has piled
+			// up behind it, so a burst costs one pass
+			int count = receiveBatch();
+			long recvTime = mClock.time(); // Time the batch was received
+			filterBatch(count);
+			for(int i = 0; i < count; i++) {
+				if(mBatch[i] != null)
+					consumeFrame(mBatch[i], recvTime);
+				mBatch[i] = null;
+			}
+			// Don't hold frames back forever for a gap nobody will fill, and
+			// deliver what was waiting on room in the receive queue
+			expireReorderBuffers(recvTime);
+			// One wakeup covers every ACK the batch brought or queued
+			if(mSignalPending) {
+				mSignalPending = false;
+				mScheduler.signal();
+			}
+		}
+	}
+
+	/**
+	 * Waits until a frame arrives, then takes every frame waiting, up to 
+	 * MAX_BATCH. The wait also ends, with nothing, when held frames are due
+	 * to expire or recv() makes room for frames that are ready, so they're
+	 * seen to whether or not anything else arrives.
+	 * @return Number of frames now in mBatch, possibly none
+	 */
+	private int receiveBatch() {
+		byte[] frame = mReader.poll();
+		if(frame == null) {
+			try {
+				mReader.awaitUntil(mReorderDeadline);
+			} catch (InterruptedException e) {
+				Log.e(TAG, "Interrupted when waiting for a frame");
+			}
+			frame = mReader.poll();
+			if(frame == null)
+				return 0;
+		}
+		int count = 0;
+		mBatch[count++] = frame;
+		while(count < MAX_BATCH && (frame = mReader.poll()) != null)
+			mBatch[count++] = frame;
+		return count;
+	}
+	
+	/**
+	 * Called by the receive queue's consumer after taking a frame off it.
+	 * Wakes us if we have ready frames waiting on the room.
+	 */
+	public void roomFreed() {
+		if(mWantsRoom) {
+			mWantsRoom = false;
+			mReader.wake();
+		}
+	}
+
+	/**
+	 * Drops every frame in the batch that's truncated or isn't for us, 
+	 * before anything looks at the rest of them. ACK and data frames sent 
+	 * to this host or an address it has joined, and beacons sent to their 
+	 * universal address, get through. Everything else is dropped on a 
+	 * single bit lookup.
+	 * @param count Number of frames in mBatch
+	 */
+	private void filterBatch(int count) {
+		for(int i = 0; i < count; i++) {
+			byte[] frame = mBatch[i];
+			if(!FrameHeader.hasHeader(frame, 0, frame.length)) {
+				Log.i(TAG, "Throwing out a truncated packet");
+				mBatch[i] = null;
+			} else if(!mAddressFilter.accepts(FrameHeader.dest(frame, 0))) {
+				mBatch[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Checks a frame that got through the filter and hands it to whoever
+	 * consumes its type
+	 * @param recvTrans The frame
+	 * @param recvTime The time its batch was received
+	 */
+	private void consumeFrame(byte[] recvTrans, long recvTime) {
+		Log.d(TAG, "RecvThread got a transmission for " 
+				+ FrameHeader.dest(recvTrans, 0));
+		mView.wrap(recvTrans);
+		// View is invalid if CRC's didn't match
+		if(!mView.isValid()) {
+			Log.i(TAG, "Throwing out a corrupted packet");
+			return;
+		}
+		// The frame checks out, so wrap it as-is. Data frames are moved into
+		// the off-heap arena instead, if we have one.
+		int type = mView.getType();
+		FramePool pool = mDataPool;
+		if(!Packet.isDataType(type) || pool == null)
+			pool = mRecvPool;
+		Packet packet = pool.wrap(recvTrans, recvTime);
+		if(type == Packet.CTRL_ACK_CODE) {
+			consumeAck(packet);
+		} else if(type == Packet.CTRL_BEACON_CODE) {
+			consumeBacon(packet, recvTime);
+			packet.release();
+		} else if(Packet.isDataType(type)) {
+			// Aggregated subframes are split back out by recv()
+			consumeData(packet);
+		} else {
+			packet.release();
 		}
 	}
 	
 	/**
-	 * Delivers an ACK packet
+	 * Sets the pool received data frames are kept in
+	 * @param pool An off-heap pool, or null to wrap frames on the heap
+	 */
+	public void setDataPool(FramePool pool) {
+		mDataPool = pool;
+	}
+
+	/**
+	 * Records an ACK packet in the ACK table and lets SendTask know
 	 * @param ackPack The ACK packet
 	 */
 	private void consumeAck(Packet ackPack) {
 		Log.i(TAG, "Consuming ACK packet");
-		try {
-			mRecvAck.put(ackPack);
-			if(LinkLayer.layerMode == LinkLayer.MODE_ROUND_TRIP_TEST)
-				mClock.logRecvAckTime(ackPack.getSequenceNumber());
-		} catch (InterruptedException e) {
-			Log.e(TAG, 
-					"RecvTask interrupted while blocking on the received ACK queue");
-			e.printStackTrace();
-		}
+		if(LinkLayer.layerMode == LinkLayer.MODE_ROUND_TRIP_TEST)
+			mClock.logRecvAckTime(ackPack.getSequenceNumber());
+		else
+			mClock.logRecvAckTime(ackPack.getSrcAddr(), 
+					ackPack.getSequenceNumber());
+		mAckTable.record(ackPack);
+		ackPack.release();
+		mSignalPending = true;
 	}
 	
 	/**
@@ -114,38 +252,43 @@ public class RecvTask implements Runnable {
 	 */
 	private void consumeData(Packet dataPacket) {
 		Log.i(TAG, "Consuming DATA packet");
+		mStations.mRxFrames[mStations.slot(dataPacket.getSrcAddr())]++;
 		
-		// If buffer is full, ignore new packets
-		if(mRecvData.remainingCapacity() == 0) {
+		// If buffer is full, refuse new packets. Duplicates still get
+		// ACKed, we already have them.
+		if(room() == 0 && !mustAccept(dataPacket)) {
 			Log.e(TAG, 
-				  "Incoming data packet queue is full, ignoring a new data packet");
+				  "Incoming data packet queue is full, refusing a new data packet");
+			refuse(dataPacket);
 			return;
 		}
 		
-		Short lastSeqNum = mLastSeqs.get(dataPacket.getSrcAddr());
-		if(lastSeqNum == null)
-			lastSeqNum = -1;
+		if(dataPacket.getType() == Packet.CTRL_EXT_DATA_CODE) {
+			consumeExtData(dataPacket);
+			return;
+		}
 		
 		short packetSeqNum = dataPacket.getSequenceNumber();
 		short packetSrcAddr = dataPacket.getSrcAddr();
-		// Check if we've already received this packet. We ignore duplicate data, 
-		// defined as any packet with a sequence number less than the value 
-		// we're expecting from the host.
-		if(lastSeqNum >= packetSeqNum) {
+		short packetDestAddr = dataPacket.getDestAddr();
+		// Check if we've already received this packet. The scoreboard 
+		// remembers the last WINDOW sequence numbers from the host, modulo
+		// the sequence space, so it survives wraparound and reordering.
+		Scoreboard board = getScoreboard(packetSrcAddr);
+		int lastSeqNum = board.getEnd();
+		if(!board.record(packetSeqNum)) {
+			mStations.mRxDuplicates[mStations.slot(packetSrcAddr)]++;
 			Log.e(TAG, "Discarding a duplicate data packet from address " 
 					+ packetSrcAddr +	", seq num " + packetSeqNum);
+			dataPacket.release();
 		} else {
-			// Increment expected sequence number
-			short nextSeqNum = (short) (lastSeqNum + 1);
-			if(nextSeqNum > Packet.MAX_SEQ_NUM)
-				nextSeqNum = 0;
 			// Check if sender has retired a packet without this system ACKing
 			// and moved on. This will be indicated by a gap in sequence numbers.
 			// Log an error but queue anyway.
-			if(nextSeqNum < packetSeqNum || 
-					(nextSeqNum == 0 && packetSeqNum < Packet.MAX_SEQ_NUM)) {
+			if(lastSeqNum >= 0 && Scoreboard.seqDiff(packetSeqNum, lastSeqNum) > 1) {
 				Log.e(TAG, "Gap in sequence numbers from host " + packetSrcAddr
-						+ ". Expecting " + nextSeqNum + ", got " + packetSeqNum);
+						+ ". Expecting " + ((lastSeqNum + 1) & Packet.MAX_SEQ_NUM) 
+						+ ", got " + packetSeqNum);
 			}
 			
 			// Queue packet for delivery
@@ -153,21 +296,402 @@ public class RecvTask implements Runnable {
 				mRecvData.put(dataPacket);
 			} catch (InterruptedException e) {
 				Log.e(TAG, "Interrupted when blocking on the receive data queue");
+				dataPacket.release();
 			}
-			
-			// Update last sequence number
-			mLastSeqs.put(packetSrcAddr, nextSeqNum);
 		}
-			
+		
+		queueAck(packetSrcAddr, packetDestAddr, packetSeqNum, null);
+	}
+	
+	/**
+	 * @return Frames we can still take, counting those the reorder buffers
+	 * hold against the receive queue
+	 */
+	private int room() {
+		return Math.max(mRecvData.remainingCapacity() - mReorderBacklog, 0);
+	}
+	
+	/**
+	 * Whether a frame gets in even when there's no room: duplicates, which
+	 * we already have, and the frame a reorder buffer is holding others back
+	 * for, since refusing it would only keep them there longer
+	 * @param dataPacket The packet
+	 * @return True if the frame mustn't be refused
+	 */
+	private boolean mustAccept(Packet dataPacket) {
+		short srcAddr = dataPacket.getSrcAddr();
+		short seqNum = dataPacket.getSequenceNumber();
+		if(getScoreboard(srcAddr).contains(seqNum))
+			return true;
+		return dataPacket.getType() == Packet.CTRL_EXT_DATA_CODE
+				&& dataPacket.isInOrder() && !dataPacket.isFragment()
+				&& getReorderBuffer(srcAddr).isAwaited(dataPacket);
+	}
+	
+	/**
+	 * Drops a data packet we have no room for and tells its sender so, 
+	 * unless it asked not to be answered. The sender holds off rather than
+	 * retrying into a full buffer.
+	 * @param dataPacket The packet
+	 */
+	private void refuse(Packet dataPacket) {
+		short srcAddr = dataPacket.getSrcAddr();
+		short destAddr = dataPacket.getDestAddr();
+		short seqNum = dataPacket.getSequenceNumber();
+		mStations.mRxRefusals[mStations.slot(srcAddr)]++;
+		int len = 0;
+		if(dataPacket.getType() == Packet.CTRL_EXT_DATA_CODE) {
+			if((dataPacket.getExtControl() & Packet.EXT_NO_ACK) != 0) {
+				dataPacket.release();
+				return;
+			}
+			// The rest of a burst may have got in before we filled up
+			if(!dataPacket.isFragment())
+				len = putBlockAck(getScoreboard(srcAddr));
+		}
+		dataPacket.release();
+		queueAck(srcAddr, destAddr, seqNum, len, true);
+	}
+	
+	/**
+	 * Consumes an ext data frame. These can belong to a block ACK burst, 
+	 * whose retransmissions arrive out of order, and frames marked 
+	 * EXT_IN_ORDER go through a reorder buffer on their way up. Frames 
+	 * marked EXT_NO_ACK are recorded silently; the rest are answered with a
+	 * block ACK carrying the scoreboard.
+	 * @param dataPacket Data packet to deliver to above layer
+	 */
+	private void consumeExtData(Packet dataPacket) {
+		// Read everything we need up front, the packet belongs to the layer
+		// above as soon as it's queued
+		short packetSeqNum = dataPacket.getSequenceNumber();
+		short packetSrcAddr = dataPacket.getSrcAddr();
+		short packetDestAddr = dataPacket.getDestAddr();
+		boolean wantsAck = 
+				(dataPacket.getExtControl() & Packet.EXT_NO_ACK) == 0;
+		Scoreboard board = getScoreboard(packetSrcAddr);
+		
+		if(dataPacket.isFragment()) {
+			consumeFragment(dataPacket, board);
+			return;
+		}
+		
+		if(board.record(packetSeqNum)) {
+			if(dataPacket.isInOrder()) {
+				// Selective repeat: hold it until everything before it is in
+				ReorderBuffer buf = getReorderBuffer(packetSrcAddr);
+				buf.add(dataPacket, dataPacket.getTimeInstantiated());
+				mReorderBacklog++;
+				deliverReady(buf);
+			} else {
+				try {
+					mRecvData.put(dataPacket);
+				} catch (InterruptedException e) {
+					Log.e(TAG, "Interrupted when blocking on the receive data queue");
+					dataPacket.release();
+				}
+			}
+		} else {
+			mStations.mRxDuplicates[mStations.slot(packetSrcAddr)]++;
+			Log.e(TAG, "Discarding a duplicate data packet from address " 
+					+ packetSrcAddr +	", seq num " + packetSeqNum);
+			dataPacket.release();
+		}
+		
+		if(wantsAck)
+			queueAck(packetSrcAddr, packetDestAddr, packetSeqNum, board);
+	}
+	
+	/**
+	 * Consumes one fragment of a larger message. A sender's fragments arrive
+	 * in order, each ACKed before the next goes out, so they're appended to 
+	 * the message as they come. The last one hands the whole message to the
+	 * layer above as a single data packet.
+	 * @param fragment The fragment
+	 * @param board Scoreboard for the fragment's source
+	 */
+	private void consumeFragment(Packet fragment, Scoreboard board) {
+		short packetSeqNum = fragment.getSequenceNumber();
+		short packetSrcAddr = fragment.getSrcAddr();
+		short dest = fragment.getDestAddr();
+		int fragNum = fragment.getFragmentNumber();
+		boolean last = !fragment.hasMoreFragments();
+		
+		int slot = mStations.slot(packetSrcAddr);
+		Reassembly message = mReassemblies[slot];
+		if(board.contains(packetSeqNum)) {
+			// Already delivered, our ACK for the last fragment got lost
+			mStations.mRxDuplicates[slot]++;
+			Log.e(TAG, "Discarding a duplicate fragment from address " 
+					+ packetSrcAddr + ", seq num " + packetSeqNum);
+			fragment.release();
+			queueFragmentAck(packetSrcAddr, dest, packetSeqNum, fragNum);
+			return;
+		}
+		if(message == null || message.mSeqNum != packetSeqNum) {
+			if(fragNum != 0) {
+				// We missed the start of this one, so it's no use to us
+				Log.e(TAG, "Discarding fragment " + fragNum + " from address "
+						+ packetSrcAddr + ", missed the first fragment");
+				fragment.release();
+				return;
+			}
+			// Anything left of an older message was given up on
+			if(message == null) {
+				message = new Reassembly();
+				mReassemblies[slot] = message;
+			}
+			message.start(packetSeqNum);
+		}
+		
+		if(fragNum < message.mNextFrag) {
+			Log.e(TAG, "Discarding a duplicate fragment from address " 
+					+ packetSrcAddr + ", seq num " + packetSeqNum);
+			fragment.release();
+			queueFragmentAck(packetSrcAddr, dest, packetSeqNum, fragNum);
+			return;
+		}
+		if(fragNum > message.mNextFrag) {
+			// The sender gave up on a fragment in between
+			Log.e(TAG, "Gap in fragments from host " + packetSrcAddr 
+					+ ". Expecting " + message.mNextFrag + ", got " + fragNum);
+			message.start((short) -1);
+			fragment.release();
+			return;
+		}
+		
+		message.append(fragment);
+		long time = fragment.getTimeInstantiated();
+		fragment.release();
+		queueFragmentAck(packetSrcAddr, dest, packetSeqNum, fragNum);
+		
+		if(last) {
+			board.record(packetSeqNum);
+			Packet whole = message.finish(dest, packetSrcAddr, time);
+			Log.d(TAG, "Reassembled " + (fragNum + 1) + " fragments from " 
+					+ packetSrcAddr + " into " + whole.getDataLen() + " bytes");
+			try {
+				mRecvData.put(whole);
+			} catch (InterruptedException e) {
+				Log.e(TAG, "Interrupted when blocking on the receive data queue");
+			}
+		}
+	}
+	
+	/**
+	 * Gets the reorder buffer for a source, creating it if need be
+	 * @param srcAddr Source address
+	 * @return The reorder buffer
+	 */
+	private ReorderBuffer getReorderBuffer(short srcAddr) {
+		int slot = mStations.slot(srcAddr);
+		ReorderBuffer buf = mReorderBuffers[slot];
+		if(buf == null) {
+			buf = new ReorderBuffer();
+			mReorderBuffers[slot] = buf;
+		}
+		return buf;
+	}
+	
+	/**
+	 * Delivers the frames a reorder buffer has ready, in order, for as long
+	 * as the receive queue has room. The rest wait in the buffer rather than
+	 * blocking us, and roomFreed() wakes us to try again.
+	 * @param buf The reorder buffer
+	 */
+	private void deliverReady(ReorderBuffer buf) {
+		boolean asked = false;
+		Packet p;
+		while((p = buf.peek()) != null) {
+			if(mRecvData.offer(p)) {
+				buf.poll();
+				mReorderBacklog--;
+			} else if(!asked) {
+				// Ask to be woken, then look again, in case the room was
+				// made before the consumer could see we wanted it
+				mWantsRoom = true;
+				asked = true;
+			} else {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Stops waiting on gaps that have held frames back for too long, 
+	 * delivers whatever the receive queue now has room for, and works out
+	 * when the next gap is due to be given up on
+	 * @param now The current clock time
+	 */
+	private void expireReorderBuffers(long now) {
+		mReorderDeadline = Long.MAX_VALUE;
+		if(mReorderBacklog == 0)
+			return;
+		for(int i = 0; i < mStations.size(); i++) {
+			ReorderBuffer buf = mReorderBuffers[i];
+			if(buf != null && buf.backlog() > 0) {
+				buf.expire(now);
+				deliverReady(buf);
+				mReorderDeadline = Math.min(mReorderDeadline, 
+						buf.expiresAt());
+			}
+		}
+	}
+	
+	/**
+	 * Gets the scoreboard for a source, creating it if need be
+	 * @param srcAddr Source address
+	 * @return The scoreboard
+	 */
+	private Scoreboard getScoreboard(short srcAddr) {
+		int slot = mStations.slot(srcAddr);
+		Scoreboard board = mScoreboards[slot];
+		if(board == null) {
+			board = new Scoreboard();
+			mScoreboards[slot] = board;
+		}
+		return board;
+	}
+	
+	/**
+	 * Queues the ACK for a fragment, which echoes its fragment number
+	 * @param dest Address the ACK goes to
+	 * @param src Address the fragment was sent to
+	 * @param seqNum Sequence number of the fragment's message
+	 * @param fragNum The fragment's number
+	 */
+	private void queueFragmentAck(short dest, short src, short seqNum, 
+			int fragNum) {
+		mAckBuf[0] = 0;
+		mAckBuf[1] = (byte) (fragNum & Packet.EXT_FRAGMENT_MASK);
+		queueAck(dest, src, seqNum, Packet.FRAGMENT_ACK_SIZE, false);
+	}
+	
+	/**
+	 * Builds an ACK and queues it for sending
+	 * @param dest Address the ACK goes to
+	 * @param src Address the frame being acknowledged was sent to
+	 * @param seqNum Sequence number being acknowledged
+	 * @param board Scoreboard to send back as a block ACK, or null for a 
+	 *              plain ACK
+	 */
+	private void queueAck(short dest, short src, short seqNum, 
+			Scoreboard board) {
+		int len = (board == null) ? 0 : putBlockAck(board);
+		queueAck(dest, src, seqNum, len, false);
+	}
+	
+	/**
+	 * Writes a scoreboard into mAckBuf as a block ACK payload
+	 * @param board The scoreboard
+	 * @return The payload's length
+	 */
+	private int putBlockAck(Scoreboard board) {
+		int end = board.getEnd();
+		long bits = board.getBits();
+		mAckBuf[0] = (byte) ((end >> 8) & 0xFF);
+		mAckBuf[1] = (byte) (end & 0xFF);
+		for(int i = 0; i < 8; i++)
+			mAckBuf[2 + i] = (byte) (bits >>> (56 - i * 8));
+		return Packet.BLOCK_ACK_SIZE;
+	}
+	
+	/**
+	 * Queues an ACK carrying the first len bytes of mAckBuf, followed by a
+	 * flow control byte saying how much room we have left. The ACK comes 
+	 * from whichever of our addresses the frame was sent to, since that's 
+	 * where its sender looks for it. Frames sent to a group get no ACK: 
+	 * every member would answer at once.
+	 * @param dest Address the ACK goes to
+	 * @param src Address the frame being acknowledged was sent to
+	 * @param seqNum Sequence number being acknowledged, or refused
+	 * @param len Payload length, before the flow control byte
+	 * @param refused True if we dropped the frame for want of room
+	 */
+	private void queueAck(short dest, short src, short seqNum, int len, 
+			boolean refused) {
+		if(mAddressFilter.isGroup(src))
+			return;
+		int flow = Math.min(room(), Packet.FLOW_WINDOW_MASK);
+		if(refused)
+			flow |= Packet.FLOW_REFUSED;
+		mAckBuf[len] = (byte) flow;
+		len = len + Packet.FLOW_CONTROL_SIZE;
 		try {
-			// Prepare and queue ACK
-			Packet ack = new Packet(Packet.CTRL_ACK_CODE, packetSrcAddr, 
-					mHostAddr, new byte[0], 0, packetSeqNum, mClock.time());
-			mSendAckQueue.put(ack);
-			Log.d(TAG, "Queueing ack seq num " + packetSeqNum);
+			Packet ack = mAckPool.acquire(Packet.CTRL_ACK_CODE, dest, 
+					src, mAckBuf, 0, len, seqNum, mClock.time());
+			if(!mSendAckQueue.offer(ack)) {
+				// SendTask has to drain the queue before we can go on, so
+				// it can't wait for the end of the batch to hear about it
+				mScheduler.signal();
+				mSendAckQueue.put(ack);
+			}
+			mSignalPending = true;
+			Log.d(TAG, "Queueing " + (refused ? "refusal" : "ack") 
+					+ " seq num " + seqNum + ", window " 
+					+ (flow & Packet.FLOW_WINDOW_MASK));
 		} catch (InterruptedException e) {
 			Log.e(TAG, "RecvTask interrupted when blocking on the send queue");
 		}
 	}
 
+	/**
+	 * A fragmented message being put back together
+	 */
+	private static class Reassembly {
+		// Room for a two fragment message in frame layout, header and CRC
+		private static final int INITIAL_SIZE = Packet.HEADER_SIZE 
+				+ 2 * Packet.MAX_EXT_DATA_BYTES + Packet.CRC_SIZE;
+		
+		private short mSeqNum = -1; // -1 when nothing is in progress
+		private int mNextFrag;
+		// The message so far, after room for a header. Null between 
+		// messages, as the last one went up in it.
+		private byte[] mBuf;
+		private int mLen;
+		
+		/**
+		 * Throws out whatever we had and starts on a new message. A buffer
+		 * an abandoned big message grew is let go of.
+		 * @param seqNum The new message's sequence number
+		 */
+		private void start(short seqNum) {
+			mSeqNum = seqNum;
+			mNextFrag = 0;
+			mLen = 0;
+			if(mBuf == null || mBuf.length > INITIAL_SIZE)
+				mBuf = (seqNum < 0) ? null : new byte[INITIAL_SIZE];
+		}
+		
+		/**
+		 * Appends a fragment's data, minus its control field
+		 * @param fragment The fragment
+		 */
+		private void append(Packet fragment) {
+			int len = fragment.getDataLen() - Packet.EXT_CONTROL_SIZE;
+			int size = Packet.HEADER_SIZE + mLen + len + Packet.CRC_SIZE;
+			if(size > mBuf.length)
+				mBuf = Arrays.copyOf(mBuf, Math.max(mBuf.length * 2, size));
+			fragment.copyData(Packet.EXT_CONTROL_SIZE, mBuf, 
+					Packet.HEADER_SIZE + mLen, len);
+			mLen = mLen + len;
+			mNextFrag++;
+		}
+		
+		/**
+		 * Hands the finished message over as a data packet built around our
+		 * buffer, so it isn't copied again, and gets ready for the next one
+		 * @param dest Address the message was sent to
+		 * @param src Address it came from
+		 * @param time When its last fragment was received
+		 * @return The packet
+		 */
+		private Packet finish(short dest, short src, long time) {
+			Packet whole = Packet.around(Packet.CTRL_DATA_CODE, dest, src, 
+					mBuf, mLen, mSeqNum, time);
+			mBuf = null;
+			start((short) -1);
+			return whole;
+		}
+	}
 }
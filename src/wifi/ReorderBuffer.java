@@ -0,0 +1,200 @@
+package wifi;
+
+import java.util.ArrayDeque;
+
+/**
+ * Puts one source's selective repeat frames back in order. Frames that arrive
+ * ahead of a gap are held until the gap is filled, then handed out in
+ * sequence. RecvTask gives up on a gap when the sender says nothing older is
+ * coming (EXT_WINDOW_START), when a frame arrives too far ahead for the
+ * window to hold both, or when frames have been held for HOLD_TIME.
+ *
+ * Nothing is handed out until a window start says where the sequence begins,
+ * since the first frame to arrive needn't be the oldest one sent. Until then
+ * the oldest frame held stands in for it.
+ *
+ * Ready frames stay here until RecvTask has room to deliver them, so a slow
+ * layer above never blocks RecvTask.
+ */
+public class ReorderBuffer {
+
+	// Frames held at most, the same span a block ACK covers
+	public static final int WINDOW = Scoreboard.WINDOW;
+	// Longest we hold frames waiting for a gap to fill, in clock units. By
+	// then the sender has used up every retry on the missing frame.
+	public static final long HOLD_TIME = RttEstimator.MAX_RTO;
+
+	private static final int SEQ_SPACE = Packet.MAX_SEQ_NUM + 1;
+
+	private Packet[] mSlots = new Packet[WINDOW]; // Indexed by seq % WINDOW
+	private int mHeld; // Frames in mSlots
+	private int mNext = -1; // Sequence number we're waiting on, -1 until known
+	// False until a window start, or HOLD_TIME, fixes where mNext begins
+	private boolean mStartKnown;
+	private long mStalledSince = -1L; // When the current gap started holding
+	// Frames ready to be handed out, in order
+	private ArrayDeque<Packet> mReady = new ArrayDeque<Packet>();
+
+	/**
+	 * Adds a frame that's new according to the source's scoreboard
+	 * @param p The frame
+	 * @param now The current clock time
+	 */
+	public void add(Packet p, long now) {
+		int seq = p.getSequenceNumber() & Packet.MAX_SEQ_NUM;
+		if(p.isWindowStart()) {
+			skipTo(seq);
+			if(!mStartKnown && mNext >= 0 && canStartAt(seq))
+				mNext = seq;
+			mStartKnown = true;
+		}
+		if(mNext < 0)
+			mNext = seq;
+		int ahead = Scoreboard.seqDiff(seq, mNext);
+		if(ahead < 0 && !mStartKnown && canStartAt(seq)) {
+			// Older than anything held so far, so it starts the sequence
+			// for now
+			mNext = seq;
+			ahead = 0;
+		}
+		if(ahead < 0) {
+			// We already gave up waiting for it, so it can't hold anything
+			// up. Better late than lost, since it's been ACKed.
+			mReady.addLast(p);
+			return;
+		}
+		if(ahead >= WINDOW)
+			skipTo((seq - WINDOW + 1 + SEQ_SPACE) % SEQ_SPACE);
+		mSlots[seq % WINDOW] = p;
+		mHeld++;
+		drain(now);
+	}
+
+	/**
+	 * Gives up on a gap that has held frames back for too long
+	 * @param now The current clock time
+	 */
+	public void expire(long now) {
+		if(mHeld == 0 || now - mStalledSince < HOLD_TIME)
+			return;
+		mStartKnown = true;
+		while(mSlots[mNext % WINDOW] == null)
+			mNext = (mNext + 1) % SEQ_SPACE;
+		// Any gap after this one gets its own HOLD_TIME
+		mStalledSince = -1L;
+		drain(now);
+	}
+
+	/**
+	 * @return The next frame to deliver, or null if there isn't one yet
+	 */
+	public Packet poll() {
+		return mReady.pollFirst();
+	}
+
+	/**
+	 * @return The frame poll() would return, left in place
+	 */
+	public Packet peek() {
+		return mReady.peekFirst();
+	}
+
+	/**
+	 * @return Number of frames held back waiting for a gap to fill
+	 */
+	public int held() {
+		return mHeld;
+	}
+
+	/**
+	 * @return Number of frames here, held or ready, not yet delivered
+	 */
+	public int backlog() {
+		return mHeld + mReady.size();
+	}
+
+	/**
+	 * @return Clock time the frames held now are given up waiting on, or
+	 *         Long.MAX_VALUE if none are held
+	 */
+	public long expiresAt() {
+		return mHeld == 0 ? Long.MAX_VALUE : mStalledSince + HOLD_TIME;
+	}
+
+	/**
+	 * @param p A frame
+	 * @return True if it could fill the gap frames are being held back for
+	 */
+	public boolean isAwaited(Packet p) {
+		if(mHeld == 0)
+			return false;
+		int seq = p.getSequenceNumber() & Packet.MAX_SEQ_NUM;
+		if(mStartKnown)
+			return seq == mNext;
+		return p.isWindowStart() || Scoreboard.seqDiff(seq, mNext) < 0;
+	}
+
+	/**
+	 * @param seq A sequence number older than mNext
+	 * @return True if starting the sequence there leaves every held frame
+	 *         within WINDOW of it
+	 */
+	private boolean canStartAt(int seq) {
+		int shift = Scoreboard.seqDiff(mNext, seq);
+		if(shift <= 0)
+			return true;
+		if(shift >= WINDOW)
+			return mHeld == 0;
+		for(int k = WINDOW - shift; k < WINDOW; k++) {
+			if(mSlots[(mNext + k) % WINDOW] != null)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Stops waiting for anything older than the given sequence number,
+	 * readying whatever was held in front of it
+	 * @param seq The oldest sequence number still worth waiting for
+	 */
+	private void skipTo(int seq) {
+		if(mNext < 0 || Scoreboard.seqDiff(seq, mNext) <= 0)
+			return;
+		while(mHeld > 0 && mNext != seq) {
+			ready(mNext);
+			mNext = (mNext + 1) % SEQ_SPACE;
+		}
+		mNext = seq;
+		mStalledSince = -1L;
+	}
+
+	/**
+	 * Readies every frame that's next in line, and notes when a gap starts
+	 * holding frames back
+	 * @param now The current clock time
+	 */
+	private void drain(long now) {
+		while(mStartKnown && mSlots[mNext % WINDOW] != null) {
+			ready(mNext);
+			mNext = (mNext + 1) % SEQ_SPACE;
+		}
+		if(mHeld == 0)
+			mStalledSince = -1L;
+		else if(mStalledSince < 0)
+			mStalledSince = now;
+	}
+
+	/**
+	 * Moves the frame with the given sequence number, if held, to the ready
+	 * queue
+	 * @param seq The sequence number
+	 */
+	private void ready(int seq) {
+		Packet p = mSlots[seq % WINDOW];
+		if(p != null) {
+			mSlots[seq % WINDOW] = null;
+			mHeld--;
+			mReady.addLast(p);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package wifi;
+
+import rf.RF;
+
+/**
+ * Takes frames off the RF layer for RecvTask on a thread of its own.
+ * RF.receive() can't time out, so a thread blocked in it can't also wake up
+ * for a deadline. With frames coming through a ring instead, RecvTask parks
+ * until its next deadline and is still woken the moment a frame arrives.
+ */
+public class RfReader implements Runnable {
+
+	private static final String TAG = "RfReader";
+
+	// Most frames waiting on RecvTask before we stop taking them off the RF
+	// layer
+	public static final int BUFFER_SIZE = 2 * RecvTask.MAX_BATCH;
+
+	private RF mRF;
+	// Frames taken off the RF layer, for RecvTask
+	private SpscRing<byte[]> mFrames = new SpscRing<byte[]>(BUFFER_SIZE);
+	// Where RecvTask parks
+	private MacScheduler mWaiter;
+
+	/**
+	 * @param rf The physical layer
+	 * @param clock The clock RecvTask's deadlines are measured against
+	 */
+	public RfReader(RF rf, NSyncClock clock) {
+		mRF = rf;
+		mWaiter = new MacScheduler(clock);
+	}
+
+	@Override
+	public void run() {
+		Log.i(TAG, "RfReader running");
+		while(true) {
+			byte[] frame = mRF.receive();
+			try {
+				mFrames.put(frame);
+			} catch (InterruptedException e) {
+				Log.e(TAG, "Interrupted when blocking on the frame queue");
+				continue;
+			}
+			mWaiter.signal();
+		}
+	}
+
+	/**
+	 * Makes the calling thread the one wake() and arriving frames wake.
+	 * Called by RecvTask before it first waits.
+	 */
+	public void attach() {
+		mWaiter.attach();
+	}
+
+	/**
+	 * @return The next frame, or null if none has arrived
+	 */
+	public byte[] poll() {
+		return mFrames.poll();
+	}
+
+	/**
+	 * Parks until a frame arrives, the deadline passes or wake() is called,
+	 * whichever comes first. May also return early for no reason at all.
+	 * @param deadline Clock time to wake up at, or Long.MAX_VALUE for none
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	public void awaitUntil(long deadline) throws InterruptedException {
+		mWaiter.awaitUntil(deadline);
+	}
+
+	/**
+	 * Wakes the attached thread if it's parked, or keeps its next park from
+	 * blocking if it isn't
+	 */
+	public void wake() {
+		mWaiter.signal();
+	}
+}
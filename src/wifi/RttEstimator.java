@@ -0,0 +1,131 @@
+package wifi;
+
+/**
+ * Keeps a smoothed round trip time and its mean deviation for every peer we
+ * send to, Jacobson/Karels style, and derives from them how long to wait for
+ * an ACK before retransmitting. Karn's rule applies: an ACK for a frame that
+ * went out more than once is ambiguous, so it's never sampled, and each
+ * timeout doubles the peer's timeout until a clean sample comes back.
+ *
+ * The estimates live in the station table. SendTask records transmissions,
+ * RecvTask records ACKs, so every method is synchronized.
+ */
+public class RttEstimator {
+
+	private static final String TAG = "RttEstimator";
+
+	// Gains, as shifts: SRTT takes 1/8 of each error, RTTVAR 1/4
+	private static final int ALPHA_SHIFT = 3;
+	private static final int BETA_SHIFT = 2;
+	// RTO = SRTT + K * RTTVAR
+	private static final int K = 4;
+	// The clock's granularity, the least the variance term may add
+	private static final long GRANULARITY = 1L;
+
+	// An ACK can't come back sooner than SIFS plus a slot
+	public static final long MIN_RTO =
+			NSyncClock.A_SIFS_TIME + NSyncClock.A_SLOT_TIME;
+	public static final long MAX_RTO = 5000L / NSyncClock.CLOCK_UNIT_PER_MILLIS;
+
+	private long mInitialRto;
+	// Where each peer's estimate is kept
+	private StationTable mStations;
+
+	/**
+	 * @param stations Table to keep the estimates in
+	 * @param initialRto Timeout to use for a peer until we've sampled it
+	 */
+	public RttEstimator(StationTable stations, long initialRto) {
+		mStations = stations;
+		mInitialRto = clamp(initialRto);
+	}
+
+	/**
+	 * Notes that a data frame just finished going out
+	 * @param dest The frame's destination
+	 * @param seq The frame's sequence number
+	 * @param retry True if this wasn't the frame's first transmission
+	 * @param time Clock time the transmission finished
+	 */
+	public synchronized void onTransmit(short dest, int seq, boolean retry,
+			long time) {
+		StationTable t = mStations;
+		int i = t.slot(dest);
+		t.mTimedSeq[i] = seq;
+		t.mSentAt[i] = time;
+		// Karn: we couldn't tell which transmission an ACK answers
+		t.mAmbiguous[i] = retry;
+	}
+
+	/**
+	 * Notes that an ACK came in, and takes an RTT sample from it if it
+	 * answers the frame last sent to its source, first time around
+	 * @param src The ACK's source
+	 * @param seq The ACK's sequence number
+	 * @param time Clock time the ACK arrived
+	 * @return The sample, or -1 if the ACK couldn't be sampled
+	 */
+	public synchronized long onAck(short src, int seq, long time) {
+		StationTable t = mStations;
+		int i = t.find(src);
+		if(i < 0 || t.mSentAt[i] < 0 || t.mTimedSeq[i] != seq)
+			return -1L;
+		long rtt = time - t.mSentAt[i];
+		boolean ambiguous = t.mAmbiguous[i];
+		// Only the first ACK for a transmission counts
+		t.mSentAt[i] = -1L;
+		if(ambiguous || rtt < 0)
+			return -1L;
+
+		if(t.mSrtt[i] < 0) {
+			// First sample
+			t.mSrtt[i] = rtt;
+			t.mRttVar[i] = rtt / 2;
+		} else {
+			long err = rtt - t.mSrtt[i];
+			t.mSrtt[i] = t.mSrtt[i] + (err >> ALPHA_SHIFT);
+			t.mRttVar[i] = t.mRttVar[i]
+					+ ((Math.abs(err) - t.mRttVar[i]) >> BETA_SHIFT);
+		}
+		t.mRto[i] = clamp(t.mSrtt[i] + Math.max(GRANULARITY, K * t.mRttVar[i]));
+		Log.d(TAG, "RTT to " + src + ": " + rtt + ", srtt " + t.mSrtt[i]
+				+ ", rttvar " + t.mRttVar[i] + ", rto " + t.mRto[i]);
+		return rtt;
+	}
+
+	/**
+	 * Notes that we gave up waiting for an ACK from a peer, doubling its
+	 * timeout until a clean sample comes back
+	 * @param dest The peer
+	 */
+	public synchronized void onTimeout(short dest) {
+		int i = mStations.slot(dest);
+		mStations.mRto[i] = clamp(rto(i) * 2);
+	}
+
+	/**
+	 * @param dest A peer
+	 * @return How long to wait for an ACK from it, in clock units
+	 */
+	public synchronized long rto(short dest) {
+		int i = mStations.find(dest);
+		return (i < 0) ? mInitialRto : rto(i);
+	}
+
+	/**
+	 * @param i A peer's slot in the station table
+	 * @return Its timeout, the initial one if it hasn't been set yet
+	 */
+	private long rto(int i) {
+		long rto = mStations.mRto[i];
+		return (rto == 0) ? mInitialRto : rto;
+	}
+
+	/**
+	 * @param rto A timeout
+	 * @return The timeout, within [MIN_RTO, MAX_RTO]
+	 */
+	private static long clamp(long rto) {
+		return Math.max(MIN_RTO, Math.min(rto, MAX_RTO));
+	}
+}
@@ -0,0 +1,100 @@
+package wifi;
+
+/**
+ * Tracks which of the most recent sequence numbers have arrived from one
+ * source. RecvTask uses it to spot duplicate data frames, which can arrive
+ * out of order once a block ACK burst is retransmitted, and to build the
+ * bitmap it sends back in a block ACK. Sequence numbers are compared modulo
+ * the sequence space, so wrapping from 4095 to 0 is just another step
+ * forward.
+ */
+public class Scoreboard {
+
+	// Number of sequence numbers the scoreboard (and a block ACK) covers
+	public static final int WINDOW = 64;
+
+	private static final int SEQ_SPACE = Packet.MAX_SEQ_NUM + 1;
+
+	private int mEnd = -1; // Newest sequence number recorded, -1 if none yet
+	private long mBits; // Bit k is set if (mEnd - k) has been received
+
+	/**
+	 * Records a sequence number as received
+	 * @param seq The sequence number
+	 * @return True if it's new, false if we've already seen it
+	 */
+	public boolean record(int seq) {
+		if(mEnd < 0) {
+			mEnd = seq;
+			mBits = 1L;
+			return true;
+		}
+		int ahead = seqDiff(seq, mEnd);
+		if(ahead > 0) {
+			// Slide the window forward
+			mBits = (ahead >= WINDOW) ? 0L : mBits << ahead;
+			mBits |= 1L;
+			mEnd = seq;
+			return true;
+		}
+		int back = -ahead;
+		if(back >= WINDOW) {
+			// Older than any retransmission could be, so the sender must have
+			// started over. Start over with it rather than shut it out.
+			mEnd = seq;
+			mBits = 1L;
+			return true;
+		}
+		long bit = 1L << back;
+		if((mBits & bit) != 0)
+			return false;
+		mBits |= bit;
+		return true;
+	}
+
+	/**
+	 * Checks whether a sequence number has been recorded, without recording it
+	 * @param seq The sequence number
+	 * @return True if it's within the window and has been received
+	 */
+	public boolean contains(int seq) {
+		return mEnd >= 0 && covers(mEnd, mBits, seq);
+	}
+
+	/**
+	 * @return The newest sequence number recorded
+	 */
+	public int getEnd() {
+		return mEnd;
+	}
+
+	/**
+	 * @return The bitmap, bit k set if (getEnd() - k) has been received
+	 */
+	public long getBits() {
+		return mBits;
+	}
+
+	/**
+	 * Signed distance from b to a in the 12-bit sequence space
+	 * @param a A sequence number
+	 * @param b Another sequence number
+	 * @return Positive if a is ahead of b, negative if it's behind
+	 */
+	public static int seqDiff(int a, int b) {
+		int d = (a - b) & Packet.MAX_SEQ_NUM;
+		return (d >= SEQ_SPACE / 2) ? d - SEQ_SPACE : d;
+	}
+
+	/**
+	 * Checks whether a block ACK bitmap acknowledges a sequence number
+	 * @param end Newest sequence number covered by the bitmap
+	 * @param bits The bitmap, bit k set if (end - k) was received
+	 * @param seq The sequence number to check
+	 * @return True if the bitmap covers seq
+	 */
+	public static boolean covers(int end, long bits, int seq) {
+		int back = seqDiff(end, seq);
+		return back >= 0 && back < WINDOW && ((bits >>> back) & 1L) != 0;
+	}
+}
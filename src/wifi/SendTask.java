@@ -1,10 +1,8 @@
 package wifi;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import rf.RF;
@@ -26,15 +24,28 @@ public class SendTask implements Runnable {
 	private static final int WAITING_PACKET_IFS = 3;
 	private static final int WAITING_BACKOFF = 4;
 	private static final int WAITING_FOR_ACK = 5;
+	private static final int WAITING_FRAGMENT_SIFS = 6;
+	
+	// SLOT SELECTION POLICIES
+	// 802.11 backoff: a random slot, CWmin again for every new frame
+	public static final int SLOT_RANDOM = 0;
+	// Always the last slot of the window, for testing
+	public static final int SLOT_FIXED = 1;
+	// A random slot from a window adapted to the failure rate we see
+	public static final int SLOT_ADAPTIVE = 2;
 
 	// ESSENTIALS
 	private RF mRF;
-	private BlockingQueue<Packet> mSendDataQueue;
-	private BlockingQueue<Packet> mRecvAckQueue;
+	// Outgoing data, queued per destination
+	private TxQueues mTxQueues;
+	// ACKs RecvTask has received from each destination
+	private AckTable mAckTable;
 
 	private BlockingQueue<Packet> mSendAckQueue;
 
 	private NSyncClock mClock;
+	// Parks us until our next deadline or until there's something to do
+	private MacScheduler mScheduler;
 	private AtomicInteger mHostStatus;
 	private Random mRandom;
 	
@@ -42,8 +53,30 @@ public class SendTask implements Runnable {
 	private Packet mPacket;
 	private int mState = INITIALIZED;
 	private int mSlotSelectionPolicy;
-	// Map of last seq nums by dest address
-	private HashMap<Short, Short> mLastSeqs; 
+	// Pack small queued sends for one destination into a single frame? Off
+	// unless command 5 turns it on, since stations that don't know ext data
+	// frames ignore them and would never ACK.
+	private volatile boolean mAggregation = false;
+	// Scratch space for laying out aggregated subframes
+	private byte[] mAggBuf = new byte[Packet.MAX_DATA_BYTES];
+	// Frames each destination's block ACK session has outstanding, the 
+	// window the current burst comes from, and which of its frames are
+	// going out in the burst (none when we're sending a single frame).
+	// Windows are indexed by their destination's station table slot.
+	private TxWindow[] mWindows;
+	private TxWindow mWindow;
+	private int[] mBurst = new int[TxWindow.MAX_SIZE];
+	private int mBurstLen = 0;
+	// Access category the current burst contends under, its highest
+	private int mBurstAc;
+	// Most data frames we'll have outstanding at once, 1 is stop-and-wait
+	private volatile int mWindowSize = 1;
+	// Set once a fragment fails, so the rest of its message is dropped
+	private boolean mDroppingFragments;
+	private short mDroppingDest;
+	private int mDroppingAc;
+	// Per-destination sequence numbers and counters
+	private StationTable mStations;
 	private long mLastEvent;
 	
 	// COUNTS
@@ -51,9 +84,14 @@ public class SendTask implements Runnable {
 	// We really track tries, so we'll check against retries + initial attempt.
 	private static final int MAX_TRY_COUNT = MAX_RETRIES + 1;
 	private int mTryCount = 0;
+	// A receiver that keeps refusing frames is left alone for twice as long
+	// each time, up to this many doublings of the ACK wait
+	private static final int MAX_HOLD_DOUBLINGS = 4;
+	// Refusals in a row a destination gets before we give up on the frame
+	// it keeps refusing, as if it had run out of tries
+	private static final int MAX_REFUSALS = 8;
 	
 	// INTERVALS
-	private static final long NANO_PER_MILLIS = NSyncClock.NANO_PER_MILLIS;
 	private long mAckWait;
 	private long mBackoff = 0L;
 	
@@ -61,37 +99,57 @@ public class SendTask implements Runnable {
 	public static final long CW_MIN = NSyncClock.CW_MIN;
 	public static final long CW_MAX = NSyncClock.CW_MAX;
 	private long mCW = NSyncClock.CW_MIN;
+	// Adapts the window to the channel under SLOT_ADAPTIVE. Fed every
+	// outcome whatever the policy, so it's warmed up when switched to.
+	private ContentionController mContention = new ContentionController();
 	
 	private static final long A_SLOT_TIME = NSyncClock.A_SLOT_TIME;
 
-	private static final long EPSILON = 2;
+	// How often we look to see if a busy channel has gone idle
+	private static final long CHANNEL_POLL_TIME = A_SLOT_TIME / 10;
+
+	// Reusable transmit arrays for the last few frame sizes sent. 
+	// RF.transmit() takes a byte[] of exactly the frame's length and copies 
+	// it before returning. ACKs, beacons and full data frames come in a few
+	// sizes, so a handful covers most frames without holding one array per 
+	// length.
+	private static final int TX_BUFFER_CACHE = 4;
+	private byte[][] mTxBuffers = new byte[TX_BUFFER_CACHE][];
+	// Entry the next size we haven't got replaces
+	private int mNextTxBuffer;
 	
 	/**
 	 * Creates a SendTask capable of transmitting packets according to 802.11~
 	 * @param rf - The RF physical layer upon which we should transmit
 	 * @param nSyncClock - the synced clock
 	 * @param hostStatus - the atomic integer linkLayer status
-	 * @param sendQueue - a queue from which we should poll data packets
+	 * @param txQueues - per-destination queues from which we take data packets
 	 * @param sendAckQueue - a queue from which we should poll outgoing acks
-	 * @param recvAckQueue - a queue from which we should poll recvd acks
+	 * @param ackTable - where RecvTask records the acks we receive
+	 * @param scheduler - wakes us when any of the queues needs attention
+	 * @param stations - where we keep per-destination state
 	 * @param mac - the mac address of this machine
 	 */
 	public SendTask(
 			RF rf,
 			NSyncClock nSyncClock,
 			AtomicInteger hostStatus,
-			BlockingQueue<Packet> sendDataQueue, 
+			TxQueues txQueues, 
 			BlockingQueue<Packet> sendAckQueue,
-			BlockingQueue<Packet> recvAckQueue,
+			AckTable ackTable,
+			MacScheduler scheduler,
+			StationTable stations,
 			short mac) 
 	{		
 		mRF = rf;
-		mSendDataQueue = sendDataQueue;
+		mTxQueues = txQueues;
 		mSendAckQueue = sendAckQueue;
-		mRecvAckQueue = recvAckQueue;
+		mAckTable = ackTable;
 		mClock = nSyncClock;
+		mScheduler = scheduler;
 		mHostStatus = hostStatus;
-		mLastSeqs = new HashMap<Short,Short>();
+		mStations = stations;
+		mWindows = new TxWindow[stations.capacity()];
 		if(LinkLayer.layerMode == LinkLayer.MODE_ROUND_TRIP_TEST)
 			mAckWait = mClock.ackWaitRttTest();
 		else
@@ -106,6 +164,7 @@ public class SendTask implements Runnable {
 	
 	@Override
 	public void run() {
+		mScheduler.attach();
 		boolean done = false;
 		while(!Thread.interrupted() && !done) {
 			
@@ -114,51 +173,101 @@ public class SendTask implements Runnable {
 			// acknowledgment, transmission of the ACK frame shall 
 			// commence after a SIFS period, without regard to the
 			// busy/idle state of the medium.
-			processAckQueue();
+			long ackDue = processAckQueue();
 			
-			long elapsed = mClock.time() - mLastEvent;
+			long now = mClock.time();
+			long elapsed = now - mLastEvent;
+			// When the current state next needs us, unless something wakes
+			// us sooner. Left at now, we go straight round again.
+			long wakeAt = now;
 			switch(mState) {
 			
 			// Our big switch statement of task states
 			case WAITING_FOR_DATA:
-				try {
-					mPacket = null;
-					long beaconInterval = mClock.getBeaconInterval();
-					long beaconElapsed = 
-							mClock.time() - mClock.getLastBeaconEvent();
-					boolean isBaconTime = beaconElapsed >= beaconInterval;
-					// if it's time for bacon
-					if(beaconInterval > -1 && isBaconTime) {
-						// We generate a beacon packet here, but it's mostly
-						// just a dummy that we can channel through the usual
-						// sending logic. We update its time just before sending
-						// to get a more accurate time
-						// ( remember, we have no idea how long we'll have 
-						// to wait for an open channel to send this sucker)
-						mPacket = mClock.generateBeacon();
+				mPacket = null;
+				mBurstLen = 0;
+				long beaconInterval = mClock.getBeaconInterval();
+				long nextBeacon = mClock.getLastBeaconEvent() + beaconInterval;
+				// if it's time for bacon
+				if(beaconInterval > -1 && now >= nextBeacon) {
+					// We generate a beacon packet here, but it's mostly
+					// just a dummy that we can channel through the usual
+					// sending logic. We update its time just before sending
+					// to get a more accurate time
+					// ( remember, we have no idea how long we'll have 
+					// to wait for an open channel to send this sucker)
+					mPacket = mClock.generateBeacon();
+				} else if((mWindow = dueWindow(now)) != null) {
+					// Frames from an earlier burst need to go out again
+					mPacket = buildBurst();
+				} else {
+					// Take turns between destinations
+					mPacket = mTxQueues.next(now);
+					if(mPacket == null) {
+						// Nothing to do until someone queues data, a parked
+						// destination can go again, or it's time to fry up 
+						// some bacon
+						wakeAt = (beaconInterval > -1) ? 
+								nextBeacon : Long.MAX_VALUE;
+						wakeAt = Math.min(wakeAt, mTxQueues.nextUnpark());
+						wakeAt = Math.min(wakeAt, nextWindowEvent());
+					} else if(mTxQueues.lastTries() > 0) {
+						// Back from a parked destination for another try
+						mTryCount = mTxQueues.lastTries();
+						setBackoff(0, mPacket.getType(), 
+								mPacket.getAccessCategory());
+						setState(WAITING_FOR_OPEN_CHANNEL);
+						break;
+					} else if(skipFragment(mPacket)) {
+						mPacket.release();
+						mPacket = null;
 					} else {
-						// otherwise block on poll for no more than
-						// beaconInterval so that we don't miss the next
-						// opportunity to fry up some bacon
-						long nanoWait = mClock.getBeaconIntervalNano();
-						mPacket = mSendDataQueue.poll(nanoWait, TimeUnit.NANOSECONDS);
+						mPacket = aggregate(mPacket);
+						if(mWindowSize > 1 && fitsExtFrame(mPacket)) {
+							short dest = mPacket.getDestAddr();
+							mWindow = getWindow(dest);
+							if(mWindow.size() < sendWindow(dest) 
+									&& mWindow.canAdd(peekNextSeqNum(dest))) {
+								addToWindow(mPacket);
+								mPacket = buildBurst();
+							} else {
+								// The window is full of frames still in 
+								// flight, so this one waits for a timer
+								mTxQueues.requeue(mPacket, 0, Math.max(
+										mWindow.getParkedUntil(), mWindow.nextDue()));
+								mPacket = null;
+								mWindow = null;
+							}
+						}
 					}
-					
-					// If we got a packet either way
-					if(mPacket != null) {
-						// Only set sequence number for data, ACK sequence numbers 
-						// are already set by the RecvTask
-						if(mPacket.getType() == Packet.CTRL_DATA_CODE) {
-							Short nextSeq = getNextSeqNum(mPacket.getDestAddr());
-							mPacket.setSequenceNumber(nextSeq);
+				}
+				
+				// If we got a packet either way
+				if(mPacket != null) {
+					// Only set sequence number for data, ACK sequence numbers 
+					// are already set by the RecvTask. Burst frames got theirs
+					// when they joined the window.
+					// Fragments all share their first fragment's.
+					if(mPacket.isData() && mBurstLen == 0) {
+						short dest = mPacket.getDestAddr();
+						int flow = StationTable.flow(mStations.slot(dest), 
+								mPacket.getAccessCategory());
+						if(mPacket.getFragmentNumber() > 0) {
+							mPacket.setSequenceNumber(
+									(short) mStations.mFragSeq[flow]);
+						} else {
+							mPacket.setSequenceNumber(getNextSeqNum(dest));
+							if(mPacket.isFragment())
+								mStations.mFragSeq[flow] = 
+										mPacket.getSequenceNumber();
 						}
-						mTryCount = 0;
-						setBackoff(mTryCount, mPacket.getType());
-						setState(WAITING_FOR_OPEN_CHANNEL);
 					}
-				} catch (InterruptedException e) {
-					done = true;
-					Log.e(TAG, e.getMessage());
+					// Checksum now, before contention starts. Retries
+					// get theirs as they're prepared.
+					mPacket.ensureCRC();
+					mTryCount = 0;
+					setBackoff(mTryCount, mPacket.getType(), accessCategory());
+					setState(WAITING_FOR_OPEN_CHANNEL);
 				}
 				break;
 			
@@ -166,18 +275,15 @@ public class SendTask implements Runnable {
 				if(!mRF.inUse()) {
 					setState(WAITING_PACKET_IFS);
 				} else {
-					try {
-						sleepyTime();
-					} catch(InterruptedException e) {
-						done = true;
-						Log.e(TAG, e.getMessage());                
-					}
+					// The RF layer can't tell us when the channel frees up,
+					// so we have to go and look
+					wakeAt = now + CHANNEL_POLL_TIME;
 				}
 				break;
 
 			case WAITING_PACKET_IFS:
 			
-				long ifs = mPacket.getIFS();
+				long ifs = ifs();
 				long timeLeft = ifs - elapsed;
 				
 				// ...do the usual routine:
@@ -186,22 +292,16 @@ public class SendTask implements Runnable {
 					
 				// Done waiting this packet's IFS
 				} else if(timeLeft <= 0) {
-					long time = mClock.time();
 					// if waited long enough && within EPSILON of 50 units
-					if(time % 50 > EPSILON) {
-						// Busy wait until the next 50 unit boundary
+					if(!MacScheduler.onBoundary(now)) {
+						wakeAt = MacScheduler.nextBoundary(now);
 						break;
 					}
-					Log.d(TAG, "done waiting IFS at " + time);
+					Log.d(TAG, "done waiting IFS at " + now);
 					setState(WAITING_BACKOFF);
-				} 
-				else {
-					try {
-						sleepyTime();
-					} catch(InterruptedException e) {
-						done = true;
-						Log.e(TAG, e.getMessage());		
-					}
+				} else {
+					// Check the channel's still idle once a slot
+					wakeAt = Math.min(mLastEvent + ifs, now + A_SLOT_TIME);
 				}
 				break;
 				
@@ -215,12 +315,11 @@ public class SendTask implements Runnable {
 					// we might use an EPSILON if we didn't trust the OS to
 					// wake us exactly on a 50 unit increment.
 				} else if(timeLeft <=0) {
-					long time = mClock.time();
-					if(time % 50 > EPSILON) {
-						// Busy wait until the next 50 unit boundary
+					if(!MacScheduler.onBoundary(now)) {
+						wakeAt = MacScheduler.nextBoundary(now);
 						break;
 					}
-					Log.d(TAG, "Done waiting backoff at " + mClock.time());
+					Log.d(TAG, "Done waiting backoff at " + now);
 					if(mPacket.isBeacon()) {
 						// update time to the latest
 						mClock.updateBeacon(mPacket);
@@ -234,78 +333,134 @@ public class SendTask implements Runnable {
 					}
 					
 					// Fire away!
-					int bytesSent = transmit(mPacket);
-					if(mPacket.isBeacon()) 
-						mClock.onBeaconTransmit();
-					// Log transmit time if we're in RTT test mode
-					if(LinkLayer.layerMode == LinkLayer.MODE_ROUND_TRIP_TEST)
-						mClock.logTransmitTime(mPacket.getSequenceNumber());
-					mTryCount++;
-					
-					if(bytesSent < mPacket.size()) {
-						// We take a semi-naive approach if the RF failed to
-						// send the whole packet. We treat it like a collision
-						// but since we know the packet didn't get out, 
-						// we can skip WAITIING_FOR_ACK, -- we won't get one.
-						prepareForRetry();
-						setState(WAITING_FOR_OPEN_CHANNEL);
-					} else if(mPacket.getType() == Packet.CTRL_DATA_CODE) {
-						setState(WAITING_FOR_ACK);
-					} else {
-						// Don't bother with retries for ACKS and BEACONS
-						retirePacket();
-						setState(WAITING_FOR_DATA);
-					}					
+					fire();
 				} else {
-					try {
-						sleepyTime();
-					} catch(InterruptedException e) {
-						done = true;
-						Log.e(TAG, e.getMessage());		
-					}
+					// Count the backoff down a slot at a time
+					wakeAt = Math.min(mLastEvent + mBackoff, now + A_SLOT_TIME);
 				}
 				break;
 				
 			case WAITING_FOR_ACK:
+				if(mBurstLen > 0) {
+					if(receivedBlockAck()) {
+						// Retire what got through, the rest goes out again
+						// with the next burst
+						NSyncClock.dance();
+						mContention.onSuccess(mBurstAc);
+						short dest = mWindow.getDest();
+						retireWindow();
+						onAccepted(dest);
+						setState(WAITING_FOR_DATA);
+					} else if(mAckTable.isRefused(mWindow.getDest(), 
+							mPacket.getSequenceNumber())) {
+						onBurstRefused();
+					} else if(elapsed >= mAckWait) {
+						Log.d(TAG, "No block ACK received. Collision has occured.");
+						mClock.logAckTimeout(mWindow.getDest());
+						mContention.onFailure(mBurstAc);
+						onBurstLost();
+					} else {
+						// RecvTask wakes us when an ACK comes in
+						wakeAt = mLastEvent + mAckWait;
+					}
+					break;
+				}
 				// If we're done with this packet
-				if(mTryCount >= MAX_TRY_COUNT || receivedAckFor(mPacket)) {
-					if(mTryCount >= MAX_TRY_COUNT) {
+				boolean acked = receivedAckFor(mPacket);
+				boolean refused = !acked && mAckTable.isRefused(
+						mPacket.getDestAddr(), mPacket.getSequenceNumber());
+				if(refused && !refusedTooOften(mPacket.getDestAddr())) {
+					// The receiver is full, not the channel. Wait for it.
+					onRefused();
+				} else if(acked || refused ||
+						(elapsed >= mAckWait && mTryCount >= MAX_TRY_COUNT)) {
+					boolean nextFragment = false;
+					if(!acked) {
 						// we're done because we give up
 						Log.d(TAG, "Giving up on packet " + 
 								mPacket.getSequenceNumber());
-						mHostStatus.set(LinkLayer.TX_FAILED);
+						if(refused) {
+							mAckTable.clearRefusal(mPacket.getDestAddr(), 
+									mPacket.getSequenceNumber());
+							endRefusals(mPacket.getDestAddr());
+						} else {
+							mClock.logAckTimeout(mPacket.getDestAddr());
+							mContention.onFailure(mPacket.getAccessCategory());
+						}
+						report(mPacket, false);
+						// The receiver can't use the rest of the message now
+						mDroppingFragments = mPacket.hasMoreFragments();
+						mDroppingDest = mPacket.getDestAddr();
+						mDroppingAc = mPacket.getAccessCategory();
 					} else {
 						// success! we're done because we succeeded!!!
 						Log.d(TAG, "Sender received packet " + 
 								mPacket.getSequenceNumber());
-						mHostStatus.set(LinkLayer.TX_DELIVERED);
+						report(mPacket, true);
 						NSyncClock.dance();
+						mContention.onSuccess(mPacket.getAccessCategory());
 						
 						// If in RTT mode, check if the RTT test is done
 						if(LinkLayer.layerMode == LinkLayer.MODE_ROUND_TRIP_TEST &&
 								mPacket.getSequenceNumber() == 
 								RoundTripTimeTest.NUM_RTT_PACKETS - 1)
 							mClock.processRTTResults();							
+						nextFragment = mPacket.hasMoreFragments();
 					}
 					
 					// Moving on
+					short dest = mPacket.getDestAddr();
+					int ac = mPacket.getAccessCategory();
 					retirePacket();
-					setState(WAITING_FOR_DATA);
+					if(acked)
+						onAccepted(dest);
+					if(nextFragment && takeNextFragment(dest, ac))
+						setState(WAITING_FRAGMENT_SIFS);
+					else
+						setState(WAITING_FOR_DATA);
 				} else if(elapsed >= mAckWait) {
 					// No ack, resend.
 					Log.d(TAG, "No ACK received. Collision has occured.");
+					short dest = mPacket.getDestAddr();
+					mClock.logAckTimeout(dest);
+					mContention.onFailure(mPacket.getAccessCategory());
 					prepareForRetry();
-					setState(WAITING_FOR_OPEN_CHANNEL);
-				} else {
-					// there's nothing to do yet, sleepytime
-					try {
-						sleepyTime();
-					} catch(InterruptedException e) {
-						done = true;
-						Log.e(TAG, e.getMessage());		
+					if(!mPacket.isFragment() && mTxQueues.hasOtherTraffic(dest)) {
+						// Don't make everyone else wait on this destination.
+						// It sits out its backoff while they send.
+						mTxQueues.requeue(mPacket, mTryCount, 
+								mClock.time() + mBackoff);
+						mPacket = null;
+						setState(WAITING_FOR_DATA);
+					} else {
+						setState(WAITING_FOR_OPEN_CHANNEL);
 					}
+				} else {
+					// RecvTask wakes us when an ACK comes in
+					wakeAt = mLastEvent + mAckWait;
+				}
+				break;
+				
+			case WAITING_FRAGMENT_SIFS:
+				// The channel is still ours from the last fragment's ACK, so
+				// the next fragment follows after SIFS without contending
+				if(elapsed >= Packet.SIFS)
+					fire();
+				else
+					wakeAt = mLastEvent + Packet.SIFS;
+				break;
+			}
+			
+			// Park until whichever comes first: the state's next deadline, 
+			// the next outgoing ACK, or a signal that something changed
+			wakeAt = Math.min(wakeAt, ackDue);
+			if(wakeAt > now) {
+				try {
+					mScheduler.awaitUntil(wakeAt);
+				} catch(InterruptedException e) {
+					done = true;
+					Log.e(TAG, "Interrupted while waiting");
 				}
-				break;				
 			}
 		}
 		
@@ -337,21 +492,86 @@ public class SendTask implements Runnable {
 			Log.d(TAG, "Waiting for open channel. Try count: " + mTryCount);
 			break;
 		case WAITING_PACKET_IFS:
-			Log.d(TAG, "Waiting packet priority: " + mPacket.getIFS());
+			Log.d(TAG, "Waiting packet priority: " + ifs());
 			break;
 		case WAITING_BACKOFF:
 			Log.d(TAG, "Waiting backoff: " + mBackoff);
 			break;
 		case WAITING_FOR_ACK:
-			Log.d(TAG, "Waiting " + mClock.ackWaitEst() + "ms for ACK.");
+			Log.d(TAG, "Waiting " + mAckWait + "ms for ACK.");
+			break;
+		case WAITING_FRAGMENT_SIFS:
+			Log.d(TAG, "Waiting SIFS for fragment " + mPacket.getFragmentNumber());
 			break;
 		}
 	}
 	
 	/**
-	 * Retires a packet from transmission candidacy
+	 * Transmits the current frame, or burst, and moves on to whatever comes
+	 * after it: waiting for an ACK, retrying, or the next frame
+	 */
+	private void fire() {
+		int bytesSent = (mBurstLen > 0) ? 
+				transmitBurst() : transmit(mPacket);
+		if(mPacket.isBeacon()) 
+			mClock.onBeaconTransmit();
+		// Log transmit time if we're in RTT test mode
+		if(LinkLayer.layerMode == LinkLayer.MODE_ROUND_TRIP_TEST)
+			mClock.logTransmitTime(mPacket.getSequenceNumber());
+		mTryCount++;
+		
+		if(bytesSent < mPacket.size()) {
+			// We take a semi-naive approach if the RF failed to
+			// send the whole packet. We treat it like a collision
+			// but since we know the packet didn't get out, 
+			// we can skip WAITIING_FOR_ACK, -- we won't get one.
+			mContention.onFailure(accessCategory());
+			if(mBurstLen > 0)
+				onBurstLost();
+			else {
+				prepareForRetry();
+				setState(WAITING_FOR_OPEN_CHANNEL);
+			}
+		} else if(mPacket.isData()) {
+			// Wait as long as the round trips to this destination call for.
+			// The RTT test wants every ACK, however late, so it keeps its
+			// long fixed wait.
+			if(LinkLayer.layerMode != LinkLayer.MODE_ROUND_TRIP_TEST) {
+				short dest = mPacket.getDestAddr();
+				mClock.logTransmitTime(dest, mPacket.getSequenceNumber(), 
+						mPacket.isRetry());
+				mAckWait = mClock.ackWaitEst(dest);
+			}
+			setState(WAITING_FOR_ACK);
+		} else {
+			// Don't bother with retries for ACKS and BEACONS. Getting a
+			// broadcast out is as delivered as it gets.
+			mPacket.completeDeliveries(true);
+			retirePacket();
+			setState(WAITING_FOR_DATA);
+		}
+	}
+	
+	/**
+	 * Reports a data packet's outcome, both to status() and to any 
+	 * sendAsync() callers waiting on it
+	 * @param p - the packet
+	 * @param delivered - true if it was acknowledged, false if given up on
+	 */
+	private void report(Packet p, boolean delivered) {
+		mHostStatus.set(delivered ? 
+				LinkLayer.TX_DELIVERED : LinkLayer.TX_FAILED);
+		if(!delivered)
+			mStations.mTxFailures[mStations.slot(p.getDestAddr())]++;
+		p.completeDeliveries(delivered);
+	}
+	
+	/**
+	 * Retires a packet from transmission candidacy, returning it to its pool
 	 */
 	private void retirePacket() {
+		if(mPacket != null)
+			mPacket.release();
 		mPacket = null;
 	}
 	
@@ -360,7 +580,493 @@ public class SendTask implements Runnable {
 	 */
 	private void prepareForRetry() {
 		mPacket.setRetry(true);
-		setBackoff(mTryCount, mPacket.getType());
+		mPacket.ensureCRC();
+		setBackoff(mTryCount, mPacket.getType(), mPacket.getAccessCategory());
+	}
+	
+	/**
+	 * Takes the next fragment of the message we're sending off the queue,
+	 * if it's there, and gets it ready to follow the last one out
+	 * @param dest - the destination of the message
+	 * @param ac - the access category it was sent under
+	 * @return true if mPacket now holds the next fragment
+	 */
+	private boolean takeNextFragment(short dest, int ac) {
+		Packet next = mTxQueues.peek(dest, ac);
+		if(next == null || next.getFragmentNumber() == 0)
+			return false;
+		// We're the only consumer, so this is the packet we peeked
+		mPacket = mTxQueues.poll(dest, ac);
+		mPacket.setSequenceNumber((short) mStations.mFragSeq[
+				StationTable.flow(mStations.slot(dest), ac)]);
+		mPacket.ensureCRC();
+		mTryCount = 0;
+		return true;
+	}
+	
+	/**
+	 * Checks whether a packet is what's left of a message whose earlier
+	 * fragment we gave up on
+	 * @param p - a packet just taken off the send queue
+	 * @return true if the packet should be dropped
+	 */
+	private boolean skipFragment(Packet p) {
+		if(!mDroppingFragments || p.getDestAddr() != mDroppingDest
+				|| p.getAccessCategory() != mDroppingAc)
+			return false;
+		if(p.getFragmentNumber() == 0) {
+			mDroppingFragments = false;
+			return false;
+		}
+		Log.d(TAG, "Dropping fragment " + p.getFragmentNumber() 
+				+ " of a failed message");
+		report(p, false);
+		return true;
+	}
+	
+	/**
+	 * Checks whether a data packet can become an ext data frame in its own
+	 * buffer, which it has to before it can join a block ACK window
+	 * @param p - the packet
+	 * @return true if the ext control field fits in front of its data
+	 */
+	private boolean fitsExtFrame(Packet p) {
+		// Fragments keep to themselves, and get ACKed one by one
+		if(p.getType() == Packet.CTRL_EXT_DATA_CODE)
+			return !p.isFragment();
+		return p.getType() == Packet.CTRL_DATA_CODE && 
+				p.getDataLen() + Packet.EXT_CONTROL_SIZE <= 
+				Math.min(Packet.MAX_DATA_BYTES, p.getMaxDataLen());
+	}
+	
+	/**
+	 * Turns a packet into an ext data frame, if it isn't one already, gives
+	 * it the next sequence number for its destination, and adds it to the
+	 * block ACK window
+	 * @param p - a packet that passed fitsExtFrame()
+	 */
+	private void addToWindow(Packet p) {
+		if(p.getType() != Packet.CTRL_EXT_DATA_CODE) {
+			int len = p.getDataLen();
+			mAggBuf[0] = 0;
+			mAggBuf[1] = 0;
+			p.copyData(0, mAggBuf, Packet.EXT_CONTROL_SIZE, len);
+			p.reset(Packet.CTRL_EXT_DATA_CODE, p.getDestAddr(), p.getSrcAddr(), 
+					mAggBuf, 0, len + Packet.EXT_CONTROL_SIZE, (short) 0, 
+					p.getTimeInstantiated());
+		}
+		p.setSequenceNumber(getNextSeqNum(p.getDestAddr()));
+		mWindow.add(p);
+	}
+	
+	/**
+	 * Tops the current block ACK window up with data queued for its 
+	 * destination and lines up every frame in it that's due as a burst. The 
+	 * frames go out back to back, SIFS apart, and only the last one asks for 
+	 * an ACK, which comes back as a bitmap covering the lot. They're all 
+	 * marked for in-order delivery, and the window's oldest frame tells the 
+	 * receiver not to wait for anything before it.
+	 * @return the burst's last frame, the one we contend for the channel with
+	 */
+	private Packet buildBurst() {
+		short dest = mWindow.getDest();
+		Packet next = mTxQueues.peek(dest);
+		while(next != null && mWindow.size() < sendWindow(dest)
+				&& next.getType() == Packet.CTRL_DATA_CODE
+				&& next.getDestAddr() == dest && fitsExtFrame(next)
+				&& mWindow.canAdd(peekNextSeqNum(dest))) {
+			// We're the only consumer, so this is the packet we peeked
+			mTxQueues.poll(dest);
+			addToWindow(aggregate(next));
+			next = mTxQueues.peek(dest);
+		}
+		
+		// Frames still in flight wait for their timers. The rest get in 
+		// highest access category first, up to the TXOP limit of the
+		// highest one, which is the category the burst contends under.
+		long now = mClock.time();
+		mBurstLen = 0;
+		int limit = 0;
+		for(int ac = AccessCategory.AC_VO; ac >= AccessCategory.AC_BK; ac--) {
+			for(int i = 0; i < mWindow.size() 
+					&& (mBurstLen == 0 || mBurstLen < limit); i++) {
+				if(!mWindow.isDue(i, now) 
+						|| mWindow.get(i).getAccessCategory() != ac)
+					continue;
+				if(mBurstLen == 0) {
+					mBurstAc = ac;
+					limit = AccessCategory.txopFrames(ac);
+				}
+				mBurst[mBurstLen++] = i;
+			}
+		}
+		// Send them oldest first
+		Arrays.sort(mBurst, 0, mBurstLen);
+		for(int k = 0; k < mBurstLen; k++) {
+			int i = mBurst[k];
+			Packet p = mWindow.get(i);
+			int control = p.getExtControl() 
+					& ~(Packet.EXT_NO_ACK | Packet.EXT_WINDOW_START);
+			control |= Packet.EXT_IN_ORDER;
+			if(k < mBurstLen - 1)
+				control |= Packet.EXT_NO_ACK;
+			if(i == 0)
+				control |= Packet.EXT_WINDOW_START;
+			p.setExtControl(control);
+			p.setRetry(mWindow.getTries(i) > 0);
+			p.ensureCRC();
+		}
+		Log.d(TAG, "Burst of " + mBurstLen + " frames to " + dest + " as " 
+				+ AccessCategory.name(mBurstAc));
+		return mWindow.get(mBurst[mBurstLen - 1]);
+	}
+	
+	/**
+	 * Transmits every frame of the burst back to back, SIFS apart, within
+	 * the one channel access we just won
+	 * @return Number of bytes of the last frame transmitted
+	 */
+	private int transmitBurst() {
+		int bytesSent = 0;
+		for(int i = 0; i < mBurstLen; i++) {
+			if(i > 0) {
+				try {
+					mScheduler.sleepUntil(mClock.time() + Packet.SIFS);
+				} catch(InterruptedException e) {
+					// Let the run loop see it
+					Thread.currentThread().interrupt();
+					return 0;
+				}
+			}
+			bytesSent = transmit(mWindow.get(mBurst[i]));
+		}
+		// Every frame's timer runs from the end of the burst, since that's
+		// when the receiver answers for all of them
+		long dueAt = mClock.time() + ackWait(mWindow.getDest());
+		for(int i = 0; i < mBurstLen; i++)
+			mWindow.onTransmit(mBurst[i], dueAt);
+		return bytesSent;
+	}
+	
+	/**
+	 * Marks whatever the ACK table says got through in the block ACK windows
+	 * @return true if the current burst has been answered
+	 */
+	private boolean receivedBlockAck() {
+		// Even a stale block ACK tells us something about what its source 
+		// has, so every window gets a look
+		for(int i = 0; i < mStations.size(); i++) {
+			if(mWindows[i] != null)
+				mWindows[i].applyAcks(mAckTable);
+		}
+		// Only the burst's last frame asks for an ACK, and the block ACK
+		// answering it covers it
+		return mAckTable.isAcked(mWindow.getDest(), mPacket.getSequenceNumber());
+	}
+	
+	/**
+	 * Retires window frames that have been acknowledged or are out of tries.
+	 * The burst has been answered or timed out by now, and a block ACK's 
+	 * bitmap covers everything sent before it, so whatever is left was lost
+	 * and is due to go out again.
+	 */
+	private void retireWindow() {
+		int i = 0;
+		while(i < mWindow.size()) {
+			if(mWindow.isAcked(i)) {
+				Packet p = mWindow.remove(i);
+				Log.d(TAG, "Sender received packet " + p.getSequenceNumber());
+				report(p, true);
+				p.release();
+			} else if(mWindow.getTries(i) >= MAX_TRY_COUNT) {
+				Packet p = mWindow.remove(i);
+				Log.d(TAG, "Giving up on packet " + p.getSequenceNumber());
+				report(p, false);
+				p.release();
+			} else {
+				i++;
+			}
+		}
+		mWindow.expireAll();
+		mPacket = null;
+		mBurstLen = 0;
+	}
+	
+	/**
+	 * Treats every frame in the burst as lost, then either moves on, if they
+	 * are all out of tries, or lines them up again behind a bigger backoff.
+	 * If other destinations have data waiting, the window sits its backoff
+	 * out parked so they can use the channel meanwhile.
+	 */
+	private void onBurstLost() {
+		int ac = mBurstAc;
+		retireWindow();
+		if(mWindow.isEmpty()) {
+			setState(WAITING_FOR_DATA);
+		} else if(othersWaiting(mWindow.getDest())) {
+			// Let everyone else send while the window backs off
+			setBackoff(mTryCount, Packet.CTRL_EXT_DATA_CODE, ac);
+			long until = mClock.time() + mBackoff;
+			mWindow.setParkedUntil(until);
+			mTxQueues.park(mWindow.getDest(), until);
+			setState(WAITING_FOR_DATA);
+		} else {
+			mPacket = buildBurst();
+			setBackoff(mTryCount, mPacket.getType(), mBurstAc);
+			setState(WAITING_FOR_OPEN_CHANNEL);
+		}
+	}
+	
+	/**
+	 * Holds the current frame back after its receiver refused it for want of
+	 * room. The receiver never took it, so the try doesn't count against it,
+	 * and it goes back on the queue while the destination sits out a hold.
+	 */
+	private void onRefused() {
+		short dest = mPacket.getDestAddr();
+		mAckTable.clearRefusal(dest, mPacket.getSequenceNumber());
+		// A requeued frame with no tries would be taken for a fresh one and
+		// given a new sequence number
+		mTryCount = Math.max(mTryCount - 1, 1);
+		mPacket.setRetry(true);
+		long until = holdUntil(dest);
+		Log.d(TAG, "Receiver " + dest + " refused packet " 
+				+ mPacket.getSequenceNumber() + ", holding until " + until);
+		mTxQueues.requeue(mPacket, mTryCount, until);
+		mPacket = null;
+		setState(WAITING_FOR_DATA);
+	}
+	
+	/**
+	 * Holds the current window back after its receiver refused the burst's
+	 * last frame for want of room. Whatever the refusal's bitmap shows got 
+	 * through is retired. The rest get their tries back and the window sits
+	 * out a hold, unless the destination has refused too often, in which 
+	 * case they're given up on.
+	 */
+	private void onBurstRefused() {
+		short dest = mWindow.getDest();
+		mAckTable.clearRefusal(dest, mPacket.getSequenceNumber());
+		boolean giveUp = refusedTooOften(dest);
+		for(int k = 0; k < mBurstLen; k++) {
+			if(mWindow.isAcked(mBurst[k]))
+				continue;
+			if(giveUp)
+				mWindow.exhaust(mBurst[k], MAX_TRY_COUNT);
+			else
+				mWindow.refund(mBurst[k]);
+		}
+		retireWindow();
+		if(giveUp) {
+			endRefusals(dest);
+			setState(WAITING_FOR_DATA);
+			return;
+		}
+		long until = holdUntil(dest);
+		Log.d(TAG, "Receiver " + dest + " refused a burst, holding until " 
+				+ until);
+		mWindow.setParkedUntil(until);
+		mTxQueues.park(dest, until);
+		setState(WAITING_FOR_DATA);
+	}
+	
+	/**
+	 * Counts a refusal from a destination and works out how long to leave it
+	 * alone, doubling with each refusal in a row
+	 * @param dest - the destination
+	 * @return clock time it can be sent to again
+	 */
+	private long holdUntil(short dest) {
+		int slot = mStations.slot(dest);
+		mStations.mTxRefusals[slot]++;
+		int doublings = Math.min(mStations.mRefusalStreak[slot]++, 
+				MAX_HOLD_DOUBLINGS);
+		return mClock.time() + (ackWait(dest) << doublings);
+	}
+	
+	/**
+	 * @param dest - the destination
+	 * @return true if it has refused MAX_REFUSALS times in a row, so the
+	 *         frame it just refused shouldn't be held back any longer
+	 */
+	private boolean refusedTooOften(short dest) {
+		return mStations.mRefusalStreak[mStations.slot(dest)] >= MAX_REFUSALS;
+	}
+	
+	/**
+	 * Starts a destination's refusal count over once we've given up on the
+	 * frame it kept refusing, so the next frame gets its own MAX_REFUSALS
+	 * @param dest - the destination
+	 */
+	private void endRefusals(short dest) {
+		int slot = mStations.slot(dest);
+		Log.d(TAG, "Receiver " + dest + " refused " 
+				+ mStations.mRefusalStreak[slot] + " times in a row");
+		mStations.mRefusalStreak[slot] = 0;
+	}
+	
+	/**
+	 * Notes that a destination took a frame. If that left it no room for 
+	 * more, it's left alone for an ACK wait before we try it again, rather
+	 * than being sent a frame it's bound to refuse.
+	 * @param dest - the destination
+	 */
+	private void onAccepted(short dest) {
+		mStations.mRefusalStreak[mStations.slot(dest)] = 0;
+		if(mAckTable.window(dest) == 0) {
+			long until = mClock.time() + ackWait(dest);
+			TxWindow window = mWindows[mStations.slot(dest)];
+			if(window != null)
+				window.setParkedUntil(until);
+			mTxQueues.park(dest, until);
+		}
+	}
+	
+	/**
+	 * @param dest - a destination
+	 * @return most frames to have outstanding to it: the block ACK window
+	 *         size, cut down to the room it last said it had, but never below
+	 *         one so we find out when it has room again
+	 */
+	private int sendWindow(short dest) {
+		int room = mAckTable.window(dest);
+		if(room < 0)
+			return mWindowSize;
+		return Math.max(1, Math.min(mWindowSize, room));
+	}
+	
+	/**
+	 * Gets the block ACK window for a destination, creating it if need be
+	 * @param dest - the destination
+	 * @return the window
+	 */
+	private TxWindow getWindow(short dest) {
+		int slot = mStations.slot(dest);
+		TxWindow window = mWindows[slot];
+		if(window == null) {
+			window = new TxWindow();
+			mWindows[slot] = window;
+		}
+		return window;
+	}
+	
+	/**
+	 * Finds a block ACK window with frames due to go out, that isn't sitting
+	 * out a backoff
+	 * @param now - the current clock time
+	 * @return the window, or null if there's none
+	 */
+	private TxWindow dueWindow(long now) {
+		for(int i = 0; i < mStations.size(); i++) {
+			TxWindow window = mWindows[i];
+			if(window != null && !window.isEmpty() 
+					&& now >= window.getParkedUntil() && window.hasDue(now))
+				return window;
+		}
+		return null;
+	}
+	
+	/**
+	 * @return when a block ACK window next has frames due, or Long.MAX_VALUE
+	 *         if none has any outstanding
+	 */
+	private long nextWindowEvent() {
+		long next = Long.MAX_VALUE;
+		for(int i = 0; i < mStations.size(); i++) {
+			TxWindow window = mWindows[i];
+			if(window != null && !window.isEmpty())
+				next = Math.min(next, 
+						Math.max(window.getParkedUntil(), window.nextDue()));
+		}
+		return next;
+	}
+	
+	/**
+	 * @param dest - a destination
+	 * @return true if any other destination has data queued or outstanding
+	 */
+	private boolean othersWaiting(short dest) {
+		if(mTxQueues.hasOtherTraffic(dest))
+			return true;
+		for(int i = 0; i < mStations.size(); i++) {
+			TxWindow window = mWindows[i];
+			if(window != null && !window.isEmpty() && window.getDest() != dest)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @param dest - a destination
+	 * @return how long to wait for an ACK from it
+	 */
+	private long ackWait(short dest) {
+		if(LinkLayer.layerMode == LinkLayer.MODE_ROUND_TRIP_TEST)
+			return mClock.ackWaitRttTest();
+		return mClock.ackWaitEst(dest);
+	}
+	
+	/**
+	 * Packs data queued right behind a data packet for the same destination 
+	 * into that packet, as length-prefixed subframes of one ext data frame, 
+	 * so a burst of small sends pays for contention and an ACK only once.
+	 * @param first - the packet just taken off the send queue
+	 * @return the packet to send, which is first, possibly rebuilt
+	 */
+	private Packet aggregate(Packet first) {
+		if(!mAggregation || first.getType() != Packet.CTRL_DATA_CODE)
+			return first;
+		short dest = first.getDestAddr();
+		// Only sends of the same access category travel together
+		int ac = first.getAccessCategory();
+		int limit = Math.min(Packet.MAX_DATA_BYTES, first.getMaxDataLen());
+		int size = Packet.EXT_CONTROL_SIZE 
+				+ Packet.SUBFRAME_HEADER_SIZE + first.getDataLen();
+		int pos = Packet.EXT_CONTROL_SIZE;
+		int count = 1;
+		
+		Packet next = mTxQueues.peek(dest, ac);
+		while(next != null && next.getType() == Packet.CTRL_DATA_CODE
+				&& size + Packet.SUBFRAME_HEADER_SIZE + next.getDataLen() <= limit) {
+			if(count == 1)
+				pos = putSubframe(first, pos);
+			// We're the only consumer, so this is the packet we peeked
+			mTxQueues.poll(dest, ac);
+			pos = putSubframe(next, pos);
+			size = pos;
+			// Its outcome is first's now
+			next.moveDeliveriesTo(first);
+			next.release();
+			count++;
+			next = mTxQueues.peek(dest, ac);
+		}
+		if(count == 1)
+			return first;
+		
+		int extControl = Packet.EXT_AGGREGATE;
+		mAggBuf[0] = (byte) ((extControl >> 8) & 0xFF);
+		mAggBuf[1] = (byte) (extControl & 0xFF);
+		// Rebuild the first packet in place around all the subframes
+		first.reset(Packet.CTRL_EXT_DATA_CODE, dest, first.getSrcAddr(), 
+				mAggBuf, 0, pos, (short) 0, first.getTimeInstantiated());
+		Log.d(TAG, "Aggregated " + count + " sends to " + dest 
+				+ " into one " + pos + " byte payload");
+		return first;
+	}
+	
+	/**
+	 * Copies a packet's data into mAggBuf as a length-prefixed subframe
+	 * @param p - packet whose data we're copying
+	 * @param pos - offset into mAggBuf to write the subframe at
+	 * @return the offset just past the subframe
+	 */
+	private int putSubframe(Packet p, int pos) {
+		int len = p.getDataLen();
+		mAggBuf[pos] = (byte) ((len >> 8) & 0xFF);
+		mAggBuf[pos + 1] = (byte) (len & 0xFF);
+		pos = pos + Packet.SUBFRAME_HEADER_SIZE;
+		p.copyData(0, mAggBuf, pos, len);
+		return pos + len;
 	}
 	
 	/**
@@ -369,50 +1075,69 @@ public class SendTask implements Runnable {
 	 * @return - true if we've received an ack, false if not
 	 */
 	private boolean receivedAckFor(Packet p) {
-		boolean recvdAck = false;
-		// synchronized block b/c otherwise other threads might screw us up
-		// we want to process the snapshot of the queue for this moment
-		synchronized(mRecvAckQueue) {
-			while(mRecvAckQueue.peek() != null) {
-				Packet ack = mRecvAckQueue.poll();
-				if(ack.getSequenceNumber() == p.getSequenceNumber() &&
-						ack.getSrcAddr() == p.getDestAddr()) {
-					recvdAck = true;
-					break; // Found an ack, end the search
-				}
-			}
-		}
-		return recvdAck;
+		// Fragments share a sequence number, so their ACKs echo the 
+		// fragment number as well
+		if(p.isFragment())
+			return mAckTable.isFragmentAcked(p.getDestAddr(), 
+					p.getSequenceNumber(), p.getFragmentNumber());
+		return mAckTable.isAcked(p.getDestAddr(), p.getSequenceNumber());
 	}
 
 	/**
 	 * Set the backoff according to 802.11 specifications.
 	 * See Sec 9.3.3 Random backoff time in the 2012 IEEE 802.11 spec.
 	 * @param tryCount - int, number of tries including initial try
+	 * @param pType - the packet type
+	 * @param ac - the access category, whose CW bounds apply to data
 	 */
-	private void setBackoff(int tryCount, int pType) {
+	private void setBackoff(int tryCount, int pType, int ac) {
 		if(tryCount < 0) 
 			throw new IllegalStateException(TAG + ": tryCount cannot be < 0");
 		if(pType == Packet.CTRL_BEACON_CODE) {
 			mBackoff = 0L;
 		} else {
-			// Reset mCW if tries == 0
-			// else double mCW and add one after every retry
-			long newCW = (tryCount > 0) ? (mCW * 2 + 1L) : CW_MIN;
+			// The category's CWmin on the first try, then double and add
+			// one for every retry. Worked out from tryCount alone, since
+			// frames to other destinations may have gone out in between.
+			long cwMin = AccessCategory.cwMin(ac);
+			long cwMax = AccessCategory.cwMax(ac);
+			long newCW = cwMin;
+			for(int i = 0; i < tryCount && newCW < cwMax; i++)
+				newCW = newCW * 2 + 1L;
 
 			// but clamp it to our specified range
-			mCW = Math.max(CW_MIN, Math.min(newCW, CW_MAX));
+			mCW = Math.max(cwMin, Math.min(newCW, cwMax));
+			// The adaptive window has already grown with every failure,
+			// retries included, so it's used as it stands
+			if(mSlotSelectionPolicy == SLOT_ADAPTIVE)
+				mCW = mContention.cw(ac);
 			// Get a random backoff in the range [0,mCW]
 			mBackoff = Utilities.nextLong(mRandom, mCW + 1L) * A_SLOT_TIME;
 			
 			// If slot selection override
-			if(mSlotSelectionPolicy != 0) {
+			if(mSlotSelectionPolicy == SLOT_FIXED) {
 				// Instead, take mCW as backoff
 				mBackoff = mCW * A_SLOT_TIME;
 			}
 		}
 	}
 	
+	/**
+	 * @return the access category we're contending under: the burst's, if
+	 *         we're sending one, else the packet's
+	 */
+	private int accessCategory() {
+		return (mBurstLen > 0) ? mBurstAc : mPacket.getAccessCategory();
+	}
+	
+	/**
+	 * @return the IFS to wait before contending: the burst's AIFS, if we're
+	 *         sending one, else the packet's own IFS
+	 */
+	private long ifs() {
+		return (mBurstLen > 0) ? AccessCategory.aifs(mBurstAc) : mPacket.getIFS();
+	}
+	
 	/**
 	 * Transmits a packet
 	 * @param p - Packet to transmit
@@ -422,44 +1147,85 @@ public class SendTask implements Runnable {
 		Log.i(TAG, "Transmitting packet type " + p.getType()
 				+ ", seq num " + p.getSequenceNumber() 
 				+ ", to " + p.getDestAddr() + ". try " + mTryCount);
-		return mRF.transmit(p.getBytes());
+		// No-op unless the frame changed since it was last checksummed
+		p.ensureCRC();
+		if(p.isData()) {
+			int slot = mStations.slot(p.getDestAddr());
+			mStations.mTxFrames[slot]++;
+			if(p.isRetry())
+				mStations.mTxRetries[slot]++;
+		}
+		return mRF.transmit(txBytes(p));
+	}
+	
+	/**
+	 * Copies a packet into a reusable array of exactly its size, if one of 
+	 * the cached ones fits, else a new one that replaces the oldest cached.
+	 * Works whether the packet lives on the heap or in an off-heap arena.
+	 * @param p - Packet to copy
+	 * @return The frame's bytes, only good until the next call
+	 */
+	private byte[] txBytes(Packet p) {
+		int size = p.size();
+		byte[] buf = null;
+		for(int i = 0; i < TX_BUFFER_CACHE && buf == null; i++) {
+			if(mTxBuffers[i] != null && mTxBuffers[i].length == size)
+				buf = mTxBuffers[i];
+		}
+		if(buf == null) {
+			buf = new byte[size];
+			mTxBuffers[mNextTxBuffer] = buf;
+			mNextTxBuffer = (mNextTxBuffer + 1) % TX_BUFFER_CACHE;
+		}
+		p.copyBytes(buf);
+		return buf;
 	}
 	
 	/**
 	 * Set the slot selection policy
-	 * @param policy - int, 0 always MAX_CW, non-zero choose slots at random
+	 * @param policy - int, SLOT_RANDOM, SLOT_FIXED or SLOT_ADAPTIVE
 	 */
 	protected void setSlotSelectionPolicy(int policy) {
 		mSlotSelectionPolicy = policy;
 	}
 	
 	/**
-	 * Get the slot selection policy
-	 * @return
+	 * Turns aggregation of small sends on or off
+	 * @param aggregate - true to pack queued data into shared frames
 	 */
-	protected int getSlotSelectionPolicy() {
-		return mSlotSelectionPolicy;
+	protected void setAggregation(boolean aggregate) {
+		mAggregation = aggregate;
+	}
+	
+	/**
+	 * @return true if small sends are being aggregated
+	 */
+	protected boolean getAggregation() {
+		return mAggregation;
+	}
+	
+	/**
+	 * Sets how many data frames we may have outstanding at once. Anything
+	 * over 1 sends bursts of ext data frames answered by block ACKs.
+	 * @param size - window size, from 1 (stop-and-wait) to TxWindow.MAX_SIZE
+	 */
+	protected void setWindowSize(int size) {
+		mWindowSize = Math.max(1, Math.min(size, TxWindow.MAX_SIZE));
 	}
 	
 	/**
-	 * Sleeps for the default time
-	 * @throws InterruptedException if thread is interrupted.
+	 * @return the most data frames we'll have outstanding at once
 	 */
-	protected void sleepyTime() throws InterruptedException {
-		int totalNanoWait = (int) (NSyncClock.getSlotTimeNano() / 10);
-		sleepyTime(totalNanoWait);
+	protected int getWindowSize() {
+		return mWindowSize;
 	}
 	
 	/**
-	 * Sleeps for the specified time
-	 * @param ms
-	 * @throws InterruptedException if thread is interrupted.
+	 * Get the slot selection policy
+	 * @return
 	 */
-	protected void sleepyTime(long nano) throws InterruptedException {
-		int millisWait = (int) (nano / NANO_PER_MILLIS);
-      int nanoWait = (int) (nano % NANO_PER_MILLIS);
-		//Log.d(TAG, "sleepyTime! " + nano + "ms");
-		Thread.sleep(millisWait, nanoWait);
+	protected int getSlotSelectionPolicy() {
+		return mSlotSelectionPolicy;
 	}
 	
 	/**
@@ -468,37 +1234,48 @@ public class SendTask implements Runnable {
 	 * @param destAddr Destination address
 	 * @return The next sequence number for specified destination address
 	 */
-	private Short getNextSeqNum(short destAddr) {
-		Short curSeqNum = mLastSeqs.get(destAddr);
-		if(curSeqNum == null || curSeqNum  == Packet.MAX_SEQ_NUM) {
-			// We have never sent to this address, or next seq num exceeds max
-			curSeqNum = 0;
-			mLastSeqs.put(destAddr, curSeqNum);
-		} else {
-			mLastSeqs.put(destAddr, ++curSeqNum);
-		}
+	private short getNextSeqNum(short destAddr) {
+		int slot = mStations.slot(destAddr);
+		// -1 if we have never sent to this address, and MAX_SEQ_NUM wraps
+		int curSeqNum = (mStations.mTxSeq[slot] + 1) & Packet.MAX_SEQ_NUM;
+		mStations.mTxSeq[slot] = curSeqNum;
+		// Whatever ACKed this number last time round answers nothing now
+		mAckTable.clear(destAddr, curSeqNum);
 
-		return curSeqNum;
+		return (short) curSeqNum;
+	}
+	
+	/**
+	 * Gets the sequence number getNextSeqNum() would hand out next, without
+	 * handing it out
+	 * @param destAddr Destination address
+	 * @return The next sequence number for specified destination address
+	 */
+	private short peekNextSeqNum(short destAddr) {
+		int slot = mStations.slot(destAddr);
+		return (short) ((mStations.mTxSeq[slot] + 1) & Packet.MAX_SEQ_NUM);
 	}
 	
 	/**
-	 * Sends outgoing acks in ack queue if SIFS has expired since they were born
+	 * Sends the outgoing ack at the head of the ack queue if SIFS has expired
+	 * since it was born
+	 * @return When the next outgoing ack is due, or Long.MAX_VALUE if none are
 	 */
-	private void processAckQueue() {
+	private long processAckQueue() {
 		Packet ack = mSendAckQueue.peek();
-		if(ack != null) {
-			long ackElapsed = mClock.time() - ack.getTimeInstantiated();
-			// Send if SIFS has elapsed and we're on a % 50 boundary
-			if(ackElapsed >= Packet.SIFS && mClock.time() % 50 <= EPSILON) {
-				Log.d(TAG, "Sending ack, seq num " + ack.getSequenceNumber());
-				mRF.transmit(ack.getBytes());
-				try {
-					mSendAckQueue.take();
-				} catch (InterruptedException e) {
-					Log.e(TAG, e.getMessage());
-					e.printStackTrace();
-				}
-			}			
+		if(ack == null)
+			return Long.MAX_VALUE;
+		long time = mClock.time();
+		long due = ack.getTimeInstantiated() + Packet.SIFS;
+		// Send if SIFS has elapsed and we're on a % 50 boundary
+		if(time >= due && MacScheduler.onBoundary(time)) {
+			Log.d(TAG, "Sending ack, seq num " + ack.getSequenceNumber());
+			mRF.transmit(txBytes(ack));
+			// We're the only consumer, so this is the ack we peeked
+			mSendAckQueue.poll().release();
+			// Check on the next one straight away
+			return time;
 		}
+		return MacScheduler.nextBoundary(Math.max(time, due));
 	}
 }
@@ -0,0 +1,326 @@
+package wifi;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free BlockingQueue for exactly one producer thread and one
+ * consumer thread, such as RecvTask handing frames to the application or to
+ * SendTask. Neither side takes a lock: the producer only ever writes the
+ * tail, the consumer only ever writes the head, and each publishes with a
+ * volatile store the other side picks up with a volatile read.
+ *
+ * When put() finds the ring full, or take() finds it empty, the thread waits
+ * according to the ring's wait strategy. WAIT_SPIN busy-waits, for the
+ * lowest hand-off latency at the cost of a core, though on a single core it
+ * yields instead. WAIT_YIELD spins briefly, then yields its time slice
+ * between checks. WAIT_PARK spins and yields briefly, then parks until the
+ * other side wakes it, costing nothing while idle.
+ *
+ * A waiter registers itself, then checks the ring again before parking. The
+ * other side publishes its index before looking for a waiter, and both are
+ * volatile, so at least one of them sees the other and no wake-up is lost.
+ *
+ * Using it from more than one producer or more than one consumer at a time
+ * will corrupt it.
+ */
+public class SpscRing<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+	// Wait strategies
+	public static final int WAIT_SPIN = 0;
+	public static final int WAIT_YIELD = 1;
+	public static final int WAIT_PARK = 2;
+
+	// Rounds spent spinning before yielding, and yielding before parking
+	private static final int SPIN_ROUNDS = 100;
+	private static final int YIELD_ROUNDS = 10;
+	// Spinning on a single core only delays the thread we're waiting on
+	private static final boolean MULTI_CORE =
+			Runtime.getRuntime().availableProcessors() > 1;
+
+	private final Object[] mBuffer;
+	private final int mMask;
+	private final int mCapacity;
+
+	// Index of the next element to take, written only by the consumer
+	private final AtomicLong mHead = new AtomicLong();
+	// Index of the next free slot, written only by the producer
+	private final AtomicLong mTail = new AtomicLong();
+	// Each side's cached copy of the other's index, to skip volatile reads
+	private long mHeadCache;
+	private long mTailCache;
+
+	// Threads parked waiting on us, if any
+	private volatile Thread mWaitingProducer;
+	private volatile Thread mWaitingConsumer;
+	private volatile int mWaitStrategy;
+
+	/**
+	 * @param capacity Most elements the ring holds at once
+	 * @param waitStrategy WAIT_SPIN, WAIT_YIELD or WAIT_PARK
+	 */
+	public SpscRing(int capacity, int waitStrategy) {
+		if(capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive");
+		mCapacity = capacity;
+		// Round the slots up to a power of two so indices are a mask away
+		int slots = Integer.highestOneBit(capacity);
+		if(slots < capacity)
+			slots = slots << 1;
+		mBuffer = new Object[slots];
+		mMask = slots - 1;
+		setWaitStrategy(waitStrategy);
+	}
+
+	/**
+	 * @param capacity Most elements the ring holds at once
+	 */
+	public SpscRing(int capacity) {
+		this(capacity, WAIT_PARK);
+	}
+
+	/**
+	 * @param waitStrategy WAIT_SPIN, WAIT_YIELD or WAIT_PARK
+	 * @return True if it's one of the three
+	 */
+	public static boolean isValidWaitStrategy(int waitStrategy) {
+		return waitStrategy >= WAIT_SPIN && waitStrategy <= WAIT_PARK;
+	}
+
+	/**
+	 * Changes how blocked threads wait from now on
+	 * @param waitStrategy WAIT_SPIN, WAIT_YIELD or WAIT_PARK
+	 */
+	public void setWaitStrategy(int waitStrategy) {
+		if(!isValidWaitStrategy(waitStrategy))
+			throw new IllegalArgumentException("Unknown wait strategy "
+					+ waitStrategy);
+		mWaitStrategy = waitStrategy;
+		// Anyone parked should notice the change
+		wake(mWaitingProducer);
+		wake(mWaitingConsumer);
+	}
+
+	/**
+	 * @return WAIT_SPIN, WAIT_YIELD or WAIT_PARK
+	 */
+	public int getWaitStrategy() {
+		return mWaitStrategy;
+	}
+
+	@Override
+	public boolean offer(E e) {
+		if(e == null)
+			throw new NullPointerException();
+		long tail = mTail.get();
+		if(tail - mHeadCache >= mCapacity) {
+			mHeadCache = mHead.get();
+			if(tail - mHeadCache >= mCapacity)
+				return false;
+		}
+		mBuffer[(int) tail & mMask] = e;
+		// Publishes the element along with the new tail. A full fence, so a
+		// consumer that registered before we look below is sure to be seen.
+		mTail.set(tail + 1);
+		wake(mWaitingConsumer);
+		return true;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long head = mHead.get();
+		if(head >= mTailCache) {
+			mTailCache = mTail.get();
+			if(head >= mTailCache)
+				return null;
+		}
+		int i = (int) head & mMask;
+		E e = (E) mBuffer[i];
+		mBuffer[i] = null;
+		mHead.set(head + 1);
+		wake(mWaitingProducer);
+		return e;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E peek() {
+		long head = mHead.get();
+		if(head >= mTailCache) {
+			mTailCache = mTail.get();
+			if(head >= mTailCache)
+				return null;
+		}
+		return (E) mBuffer[(int) head & mMask];
+	}
+
+	@Override
+	public void put(E e) throws InterruptedException {
+		for(int round = 0; !offer(e); round++) {
+			mWaitingProducer = Thread.currentThread();
+			// Recheck, or the consumer may have made room before seeing us
+			if(offer(e))
+				break;
+			idle(round);
+		}
+		mWaitingProducer = null;
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		boolean offered;
+		for(int round = 0; !(offered = offer(e)); round++) {
+			if(System.nanoTime() - deadline >= 0)
+				break;
+			mWaitingProducer = Thread.currentThread();
+			if(offered = offer(e))
+				break;
+			idle(round, deadline);
+		}
+		mWaitingProducer = null;
+		return offered;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		E e;
+		for(int round = 0; (e = poll()) == null; round++) {
+			mWaitingConsumer = Thread.currentThread();
+			if((e = poll()) != null)
+				break;
+			idle(round);
+		}
+		mWaitingConsumer = null;
+		return e;
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		E e;
+		for(int round = 0; (e = poll()) == null; round++) {
+			if(System.nanoTime() - deadline >= 0)
+				break;
+			mWaitingConsumer = Thread.currentThread();
+			if((e = poll()) != null)
+				break;
+			idle(round, deadline);
+		}
+		mWaitingConsumer = null;
+		return e;
+	}
+
+	@Override
+	public int size() {
+		// Read the head first, so a concurrent take can't make us negative
+		long head = mHead.get();
+		return (int) Math.min(mTail.get() - head, mCapacity);
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return mCapacity - size();
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if(c == this)
+			throw new IllegalArgumentException();
+		int drained = 0;
+		E e;
+		while(drained < maxElements && (e = poll()) != null) {
+			c.add(e);
+			drained++;
+		}
+		return drained;
+	}
+
+	/**
+	 * Iterates over a snapshot of the ring. Only the consumer may use it.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		final long head = mHead.get();
+		final long tail = mTail.get();
+		return new Iterator<E>() {
+			private long mNext = head;
+
+			@Override
+			public boolean hasNext() {
+				return mNext < tail;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public E next() {
+				if(!hasNext())
+					throw new NoSuchElementException();
+				return (E) mBuffer[(int) mNext++ & mMask];
+			}
+		};
+	}
+
+	/**
+	 * Waits a little before the caller checks the ring again, parking until
+	 * woken if it comes to that
+	 * @param round How many times the caller has already waited
+	 * @throws InterruptedException If the caller was interrupted
+	 */
+	private void idle(int round) throws InterruptedException {
+		if(shortIdle(round))
+			LockSupport.park(this);
+	}
+
+	/**
+	 * Like idle(round), but parks no later than a deadline
+	 * @param round How many times the caller has already waited
+	 * @param deadline System.nanoTime() to give up at
+	 * @throws InterruptedException If the caller was interrupted
+	 */
+	private void idle(int round, long deadline) throws InterruptedException {
+		if(shortIdle(round))
+			LockSupport.parkNanos(this, deadline - System.nanoTime());
+	}
+
+	/**
+	 * Spins or yields, if the wait strategy and round call for it
+	 * @param round How many times the caller has already waited
+	 * @return True if the caller should park instead
+	 * @throws InterruptedException If the caller was interrupted
+	 */
+	private boolean shortIdle(int round) throws InterruptedException {
+		if(Thread.interrupted())
+			throw new InterruptedException();
+		int strategy = mWaitStrategy;
+		if(MULTI_CORE && (strategy == WAIT_SPIN || round < SPIN_ROUNDS))
+			Thread.onSpinWait();
+		else if(strategy == WAIT_YIELD || round < SPIN_ROUNDS + YIELD_ROUNDS)
+			Thread.yield();
+		else
+			return true;
+		return false;
+	}
+
+	/**
+	 * Unparks a waiting thread, if there is one
+	 * @param waiter The thread, or null
+	 */
+	private static void wake(Thread waiter) {
+		if(waiter != null)
+			LockSupport.unpark(waiter);
+	}
+}
@@ -0,0 +1,271 @@
+package wifi;
+
+import java.util.Arrays;
+
+/**
+ * Everything we keep per peer station, stored struct-of-arrays style: each
+ * field is a primitive array indexed by the station's slot, and a 64K entry
+ * index maps a 16-bit MAC address straight to its slot. Looking a station
+ * up is two array reads, with no boxing and no garbage, where it used to be
+ * a HashMap lookup on a boxed Short in each task.
+ *
+ * Slots are handed out on first use and never reused. Every array is
+ * allocated, and every field set to its initial value, up front, so a slot
+ * number is all another thread needs to see to use the slot safely. Each
+ * field has one writer:
+ * - SendTask: sequence numbers and transmit counters.
+ * - RecvTask: receive counters.
+ * - RttEstimator: the RTT fields, under its own lock, since both tasks
+ *   update them.
+ * Anyone may read a field. Counters read from another thread may lag
+ * slightly.
+ *
+ * Stations past capacity all share the last slot. That keeps them working,
+ * though their sequence numbers interleave.
+ */
+public class StationTable {
+
+	private static final String TAG = "StationTable";
+
+	// Number of 16-bit MAC addresses
+	private static final int MAC_SPACE = 1 << 16;
+
+	private final int mCapacity;
+	// Slot + 1 for each MAC address, 0 if it hasn't got one
+	private final short[] mSlotOf = new short[MAC_SPACE];
+	private final short[] mMac;
+	// Slots handed out so far
+	private volatile int mSize;
+
+	// Last sequence number SendTask sent the station, -1 if none yet
+	final int[] mTxSeq;
+	// The sequence number the station's fragmented message in progress
+	// shares, for each access category, indexed by flow()
+	final int[] mFragSeq;
+	// Data frames SendTask transmitted, retransmissions among them, and
+	// frames it gave up on
+	final long[] mTxFrames;
+	final long[] mTxRetries;
+	final long[] mTxFailures;
+	// Frames the station refused for want of room, and how many times in a
+	// row it has, which SendTask holds off longer for
+	final long[] mTxRefusals;
+	final int[] mRefusalStreak;
+
+	// Data frames RecvTask received from the station, duplicates among
+	// them, and frames it refused because the layer above was full
+	final long[] mRxFrames;
+	final long[] mRxDuplicates;
+	final long[] mRxRefusals;
+
+	// RttEstimator's: smoothed RTT (-1 until sampled), its mean deviation,
+	// the ACK timeout (0 until set), and the frame being timed: its
+	// sequence number, when it went out (-1 if nothing is being timed) and
+	// whether it had gone out before
+	final long[] mSrtt;
+	final long[] mRttVar;
+	final long[] mRto;
+	final int[] mTimedSeq;
+	final long[] mSentAt;
+	final boolean[] mAmbiguous;
+
+	/**
+	 * @param capacity Most stations the table tracks separately, at most
+	 *        Short.MAX_VALUE
+	 */
+	public StationTable(int capacity) {
+		if(capacity < 1 || capacity > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Bad station table capacity "
+					+ capacity);
+		mCapacity = capacity;
+		mMac = new short[capacity];
+		mTxSeq = filled(new int[capacity], -1);
+		mFragSeq = filled(new int[capacity * AccessCategory.COUNT], -1);
+		mTxFrames = new long[capacity];
+		mTxRetries = new long[capacity];
+		mTxFailures = new long[capacity];
+		mTxRefusals = new long[capacity];
+		mRefusalStreak = new int[capacity];
+		mRxFrames = new long[capacity];
+		mRxDuplicates = new long[capacity];
+		mRxRefusals = new long[capacity];
+		mSrtt = filled(new long[capacity], -1L);
+		mRttVar = new long[capacity];
+		mRto = new long[capacity];
+		mTimedSeq = new int[capacity];
+		mSentAt = filled(new long[capacity], -1L);
+		mAmbiguous = new boolean[capacity];
+	}
+
+	/**
+	 * Gets a station's slot, giving it one if it hasn't got one yet
+	 * @param mac The station's MAC address
+	 * @return The slot
+	 */
+	public int slot(short mac) {
+		int slot = mSlotOf[mac & 0xFFFF] - 1;
+		return (slot >= 0) ? slot : allocate(mac);
+	}
+
+	/**
+	 * Gets a station's slot without giving it one
+	 * @param mac The station's MAC address
+	 * @return The slot, or -1 if it hasn't got one
+	 */
+	public int find(short mac) {
+		return mSlotOf[mac & 0xFFFF] - 1;
+	}
+
+	/**
+	 * @return Number of slots handed out so far. Slots run from 0 to this.
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return Most stations tracked separately
+	 */
+	public int capacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * @param slot A slot
+	 * @param ac An access category
+	 * @return Index of the station's flow under that category into arrays
+	 *         kept per category, such as mFragSeq
+	 */
+	public static int flow(int slot, int ac) {
+		return slot * AccessCategory.COUNT + ac;
+	}
+
+	/**
+	 * @param slot A slot
+	 * @return MAC address of the station it was first handed to
+	 */
+	public short mac(int slot) {
+		return mMac[slot];
+	}
+
+	/**
+	 * @param slot A station's slot
+	 * @return Data frames transmitted to it, retries included
+	 */
+	public long txFrames(int slot) {
+		return mTxFrames[slot];
+	}
+
+	/**
+	 * @param slot A station's slot
+	 * @return Retransmissions to it
+	 */
+	public long txRetries(int slot) {
+		return mTxRetries[slot];
+	}
+
+	/**
+	 * @param slot A station's slot
+	 * @return Data frames to it we gave up on
+	 */
+	public long txFailures(int slot) {
+		return mTxFailures[slot];
+	}
+
+	/**
+	 * @param slot A station's slot
+	 * @return Data frames received from it, duplicates included
+	 */
+	public long rxFrames(int slot) {
+		return mRxFrames[slot];
+	}
+
+	/**
+	 * @param slot A station's slot
+	 * @return Duplicate data frames received from it
+	 */
+	public long rxDuplicates(int slot) {
+		return mRxDuplicates[slot];
+	}
+
+	/**
+	 * @param slot A station's slot
+	 * @return Frames to it that it refused for want of room
+	 */
+	public long txRefusals(int slot) {
+		return mTxRefusals[slot];
+	}
+
+	/**
+	 * @param slot A station's slot
+	 * @return Frames from it we refused for want of room
+	 */
+	public long rxRefusals(int slot) {
+		return mRxRefusals[slot];
+	}
+
+	/**
+	 * @param slot A station's slot
+	 * @return Its smoothed round trip time, or -1 if not sampled yet
+	 */
+	public long srtt(int slot) {
+		return mSrtt[slot];
+	}
+
+	/**
+	 * Logs every station's counters
+	 */
+	public void logStats() {
+		int size = mSize;
+		for(int i = 0; i < size; i++) {
+			Log.i(TAG, "Station " + mMac[i] + ": sent " + mTxFrames[i]
+					+ " (" + mTxRetries[i] + " retries, " + mTxFailures[i]
+					+ " failed, " + mTxRefusals[i] + " refused), received "
+					+ mRxFrames[i] + " (" + mRxDuplicates[i] + " duplicates, "
+					+ mRxRefusals[i] + " refused), srtt " + mSrtt[i]);
+		}
+	}
+
+	/**
+	 * Hands a station a slot, or the shared last slot if we're full
+	 * @param mac The station's MAC address
+	 * @return The slot
+	 */
+	private synchronized int allocate(short mac) {
+		// Someone may have beaten us to it
+		int slot = mSlotOf[mac & 0xFFFF] - 1;
+		if(slot >= 0)
+			return slot;
+		if(mSize < mCapacity) {
+			slot = mSize;
+			mMac[slot] = mac;
+			mSize = slot + 1;
+		} else {
+			slot = mCapacity - 1;
+			Log.e(TAG, "Station table full, " + mac + " shares a slot with "
+					+ mMac[slot]);
+		}
+		mSlotOf[mac & 0xFFFF] = (short) (slot + 1);
+		return slot;
+	}
+
+	/**
+	 * @param a An array
+	 * @param value What to fill it with
+	 * @return The array, filled
+	 */
+	private static int[] filled(int[] a, int value) {
+		Arrays.fill(a, value);
+		return a;
+	}
+
+	/**
+	 * @param a An array
+	 * @param value What to fill it with
+	 * @return The array, filled
+	 */
+	private static long[] filled(long[] a, long value) {
+		Arrays.fill(a, value);
+		return a;
+	}
+}
@@ -0,0 +1,102 @@
+package wifi;
+
+import java.lang.reflect.Method;
+
+/**
+ * Makes the threads LinkLayer runs SendTask, RecvTask and RfReader on, and
+ * the GUI its watcher on. By default they're ordinary platform threads. In
+ * VIRTUAL mode they're virtual threads, so a simulation running hundreds of
+ * stations in one JVM isn't limited by how many platform threads it can
+ * start: a station blocked in RF.receive(), a queue's take() or
+ * MacScheduler's park gives up its carrier thread instead of holding one.
+ *
+ * Virtual threads need Java 21. They're looked up by reflection so we still
+ * build and run on older JVMs, where VIRTUAL mode falls back to platform
+ * threads. The mode can be set with setMode() before the first LinkLayer is
+ * created, or with -Dwifi.threads=virtual.
+ */
+public final class TaskThreads {
+
+	private static final String TAG = "TaskThreads";
+
+	// Thread modes
+	public static final int PLATFORM = 0;
+	public static final int VIRTUAL = 1;
+
+	// Thread.ofVirtual() and Thread.Builder's name() and unstarted(), or
+	// null if this JVM doesn't have virtual threads
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		UNSTARTED = unstarted;
+	}
+
+	private static volatile int mode =
+			"virtual".equalsIgnoreCase(System.getProperty("wifi.threads")) ?
+					VIRTUAL : PLATFORM;
+
+	private TaskThreads() {
+	}
+
+	/**
+	 * @return True if this JVM can run virtual threads
+	 */
+	public static boolean virtualSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Sets the kind of thread created from now on. Threads already running
+	 * are left as they are.
+	 * @param newMode PLATFORM or VIRTUAL
+	 * @return False if VIRTUAL was asked for but isn't supported, in which
+	 *         case platform threads will be used
+	 */
+	public static boolean setMode(int newMode) {
+		if(newMode != PLATFORM && newMode != VIRTUAL)
+			throw new IllegalArgumentException("Unknown thread mode " + newMode);
+		mode = newMode;
+		return newMode == PLATFORM || virtualSupported();
+	}
+
+	/**
+	 * @return PLATFORM or VIRTUAL
+	 */
+	public static int getMode() {
+		return mode;
+	}
+
+	/**
+	 * Makes an unstarted thread of the current mode
+	 * @param task What the thread runs
+	 * @param name The thread's name
+	 * @return The thread
+	 */
+	public static Thread newThread(Runnable task, String name) {
+		if(mode == VIRTUAL && virtualSupported()) {
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) UNSTARTED.invoke(builder, task);
+			} catch (Exception e) {
+				Log.e(TAG, "Couldn't make a virtual thread, using a platform "
+						+ "thread: " + e);
+			}
+		}
+		return new Thread(task, name);
+	}
+}
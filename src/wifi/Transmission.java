@@ -15,6 +15,8 @@ public class Transmission {
    private short sourceAddr;
    private short destAddr;
    private byte[] buf;
+   // Bytes of buf an in-place recv() filled
+   private int len;
    
 
    /**
@@ -49,6 +51,22 @@ public class Transmission {
       this.buf = buf;
    }
 
+   /**
+    * Returns how many bytes the last in-place receive wrote into the buffer,
+    * e.g. by <code>LinkLayer.recv(t, offset)</code> or <code>recvMany()</code>.
+    * @return the number of bytes received
+    */
+   public synchronized int getLength() {
+      return len;
+   }
+
+   /**
+    * @param len the number of bytes received into the buffer
+    */
+   public synchronized void setLength(int len) {
+      this.len = len;
+   }
+
    /**
     * @return the destination address
     */
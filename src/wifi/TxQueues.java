@@ -0,0 +1,510 @@
+package wifi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Outgoing data, queued per access category and destination, and handed to
+ * SendTask by deficit round-robin. The highest access category with frames
+ * ready always goes first, the way EDCA settles a tie between categories
+ * inside one station. Within a category, every destination with frames
+ * waiting gets a quantum of bytes per round, so each gets an equal share of
+ * the channel however big its frames are. A destination that isn't answering
+ * can be parked while it backs off, and everyone else keeps sending meanwhile
+ * instead of waiting behind it for all its retries.
+ *
+ * Flows are filed in an open-addressing table keyed by a plain int, so
+ * looking one up allocates nothing, and a flow is dropped from it once it's
+ * empty and neither in the round nor parked. Dropped flows are kept for
+ * reuse.
+ *
+ * LinkLayer fills the queues, SendTask is the only consumer.
+ */
+public class TxQueues {
+
+	private static final String TAG = "TxQueues";
+
+	// Bytes each destination may send per round, enough for any frame
+	private static final int QUANTUM = Packet.MAX_FRAME_BYTES;
+	// Slots the flow table starts with, a power of two
+	private static final int INITIAL_TABLE_SIZE = 64;
+
+	// Frames queued per destination in each access category, at most
+	private int mCapacity;
+	private int mSize; // Frames queued altogether
+	// Flows by access category and destination, see key()
+	private FlowTable mFlows = new FlowTable(INITIAL_TABLE_SIZE);
+	// Flows dropped from the table, to be reused
+	private ArrayDeque<Flow> mSpareFlows = new ArrayDeque<Flow>();
+	// Each category's flows with frames waiting that aren't parked, in
+	// round order
+	private ArrayDeque<Flow>[] mActive;
+	// Flows sitting out a backoff
+	private ArrayList<Flow> mParked = new ArrayList<Flow>();
+	// Tries already spent on the frame next() last handed out
+	private int mLastTries;
+	// Threads in put() waiting for room
+	private ArrayList<Thread> mWaiters = new ArrayList<Thread>();
+
+	/**
+	 * @param capacity Most frames any one destination may have queued in
+	 *        each access category
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TxQueues(int capacity) {
+		mCapacity = capacity;
+		mActive = new ArrayDeque[AccessCategory.COUNT];
+		for(int ac = 0; ac < AccessCategory.COUNT; ac++)
+			mActive[ac] = new ArrayDeque<Flow>();
+	}
+
+	/**
+	 * Queues a frame behind any others for its destination and access
+	 * category
+	 * @param p The frame
+	 * @return False if the destination's queue is full
+	 */
+	public synchronized boolean offer(Packet p) {
+		Flow f = getFlow(p.getAccessCategory(), p.getDestAddr());
+		if(f.mFrames.size() >= mCapacity)
+			return false;
+		add(f, p);
+		return true;
+	}
+
+	/**
+	 * Queues a frame, waiting for room in its destination's queue if need be.
+	 * Waits parked rather than in wait(), so a virtual thread waiting here
+	 * doesn't pin its carrier thread.
+	 * @param p The frame
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void put(Packet p) throws InterruptedException {
+		Thread me = Thread.currentThread();
+		try {
+			while(true) {
+				synchronized(this) {
+					if(offer(p))
+						return;
+					if(!mWaiters.contains(me))
+						mWaiters.add(me);
+				}
+				LockSupport.park(this);
+				if(Thread.interrupted())
+					throw new InterruptedException();
+			}
+		} finally {
+			synchronized(this) {
+				mWaiters.remove(me);
+			}
+		}
+	}
+
+	/**
+	 * @param dest A destination address
+	 * @param ac An access category
+	 * @return Number of frames that destination can still queue in it
+	 */
+	public synchronized int remainingCapacity(short dest, int ac) {
+		Flow f = mFlows.get(key(ac, dest));
+		return (f == null) ? mCapacity : mCapacity - f.mFrames.size();
+	}
+
+	/**
+	 * @return Frames queued for all destinations together
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * Picks the next frame to send: from the highest access category with
+	 * frames ready, by deficit round-robin over its destinations that
+	 * aren't parked
+	 * @param now The current clock time, for unparking destinations
+	 * @return The frame, or null if nothing can be sent right now
+	 */
+	public synchronized Packet next(long now) {
+		unparkDue(now);
+		for(int ac = AccessCategory.AC_VO; ac >= AccessCategory.AC_BK; ac--) {
+			ArrayDeque<Flow> active = mActive[ac];
+			// Every pass tops a deficit up by a quantum no frame exceeds, so
+			// this finishes within a round and a bit
+			while(!active.isEmpty()) {
+				Flow f = active.peekFirst();
+				int size = f.mFrames.peekFirst().size();
+				if(f.mDeficit >= size) {
+					mLastTries = f.mHeadTries;
+					f.mHeadTries = 0;
+					return remove(f);
+				}
+				f.mDeficit = f.mDeficit + QUANTUM;
+				active.addLast(active.pollFirst());
+			}
+		}
+		mLastTries = 0;
+		return null;
+	}
+
+	/**
+	 * @return Tries already spent on the frame next() last returned, which is
+	 *         0 unless it was put back with requeue()
+	 */
+	public synchronized int lastTries() {
+		return mLastTries;
+	}
+
+	/**
+	 * Looks at the next frame queued for a destination, in the highest
+	 * access category that has one, so SendTask can line up more frames
+	 * behind the one it's sending. Frames put back with requeue() only come
+	 * out through next().
+	 * @param dest The destination
+	 * @return The frame, or null if there isn't a fresh one
+	 */
+	public synchronized Packet peek(short dest) {
+		Flow f = freshFlow(dest);
+		return (f == null) ? null : f.mFrames.peekFirst();
+	}
+
+	/**
+	 * Takes the frame peek() would return, charging it to the destination's
+	 * share of the channel
+	 * @param dest The destination
+	 * @return The frame, or null if there isn't a fresh one
+	 */
+	public synchronized Packet poll(short dest) {
+		Flow f = freshFlow(dest);
+		return (f == null) ? null : remove(f);
+	}
+
+	/**
+	 * Looks at the next frame queued for a destination in one access
+	 * category
+	 * @param dest The destination
+	 * @param ac The access category
+	 * @return The frame, or null if there isn't a fresh one
+	 */
+	public synchronized Packet peek(short dest, int ac) {
+		Flow f = mFlows.get(key(ac, dest));
+		if(f == null || f.mHeadTries > 0)
+			return null;
+		return f.mFrames.peekFirst();
+	}
+
+	/**
+	 * Takes the frame peek(dest, ac) would return
+	 * @param dest The destination
+	 * @param ac The access category
+	 * @return The frame, or null if there isn't a fresh one
+	 */
+	public synchronized Packet poll(short dest, int ac) {
+		Flow f = mFlows.get(key(ac, dest));
+		if(f == null || f.mHeadTries > 0 || f.mFrames.isEmpty())
+			return null;
+		return remove(f);
+	}
+
+	/**
+	 * Puts a frame that needs another try back at the front of its
+	 * queue and parks its destination until then
+	 * @param p The frame
+	 * @param tries Tries spent on it so far
+	 * @param until Clock time the destination can send again
+	 */
+	public synchronized void requeue(Packet p, int tries, long until) {
+		Flow f = getFlow(p.getAccessCategory(), p.getDestAddr());
+		f.mFrames.addFirst(p);
+		f.mHeadTries = tries;
+		mSize++;
+		park(p.getDestAddr(), until);
+	}
+
+	/**
+	 * Takes a destination out of the round, in every access category, until
+	 * the given time, e.g. while frames already sent to it back off
+	 * @param dest The destination
+	 * @param until Clock time it can send again
+	 */
+	public synchronized void park(short dest, long until) {
+		for(int ac = 0; ac < AccessCategory.COUNT; ac++)
+			park(getFlow(ac, dest), until);
+		Log.d(TAG, "Parked " + dest + " until " + until);
+	}
+
+	/**
+	 * @param dest A destination address
+	 * @return True if any other destination has frames queued
+	 */
+	public synchronized boolean hasOtherTraffic(short dest) {
+		int own = 0;
+		for(int ac = 0; ac < AccessCategory.COUNT; ac++) {
+			Flow f = mFlows.get(key(ac, dest));
+			if(f != null)
+				own = own + f.mFrames.size();
+		}
+		return mSize > own;
+	}
+
+	/**
+	 * @return When the first parked destination with frames queued can send
+	 *         again, or Long.MAX_VALUE if there's none
+	 */
+	public synchronized long nextUnpark() {
+		long next = Long.MAX_VALUE;
+		for(Flow f : mParked) {
+			if(!f.mFrames.isEmpty())
+				next = Math.min(next, f.mParkedUntil);
+		}
+		return next;
+	}
+
+	/**
+	 * @param ac An access category
+	 * @param dest A destination
+	 * @return The key their flow is filed under
+	 */
+	private static int key(int ac, short dest) {
+		return (ac << 16) | (dest & 0xFFFF);
+	}
+
+	/**
+	 * Gets the flow for an access category and destination, creating it if
+	 * need be
+	 * @param ac The access category
+	 * @param dest The destination
+	 * @return The flow
+	 */
+	private Flow getFlow(int ac, short dest) {
+		int key = key(ac, dest);
+		Flow f = mFlows.get(key);
+		if(f == null) {
+			f = mSpareFlows.pollFirst();
+			if(f == null)
+				f = new Flow();
+			f.mAc = ac;
+			f.mKey = key;
+			mFlows.put(f);
+		}
+		return f;
+	}
+
+	/**
+	 * Drops a flow from the table if it's empty and neither in the round nor
+	 * parked, keeping it for reuse
+	 * @param f The flow
+	 */
+	private void dropIfIdle(Flow f) {
+		if(!f.mFrames.isEmpty() || f.mActive || f.mParkedUntil != 0)
+			return;
+		mFlows.remove(f.mKey);
+		f.mDeficit = 0;
+		f.mHeadTries = 0;
+		mSpareFlows.addLast(f);
+	}
+
+	/**
+	 * Finds a destination's flow in the highest access category with a
+	 * fresh frame at its head
+	 * @param dest The destination
+	 * @return The flow, or null if there isn't one
+	 */
+	private Flow freshFlow(short dest) {
+		for(int ac = AccessCategory.AC_VO; ac >= AccessCategory.AC_BK; ac--) {
+			Flow f = mFlows.get(key(ac, dest));
+			if(f != null && f.mHeadTries == 0 && !f.mFrames.isEmpty())
+				return f;
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a frame to the back of a flow, making the flow active if it was
+	 * idle
+	 * @param f The flow
+	 * @param p The frame
+	 */
+	private void add(Flow f, Packet p) {
+		f.mFrames.addLast(p);
+		mSize++;
+		if(!f.mActive && f.mParkedUntil == 0) {
+			f.mActive = true;
+			// Newcomers start the round with nothing in hand
+			f.mDeficit = 0;
+			mActive[f.mAc].addLast(f);
+		}
+	}
+
+	/**
+	 * Takes the frame at the front of a flow and charges the flow for it
+	 * @param f The flow
+	 * @return The frame
+	 */
+	private Packet remove(Flow f) {
+		Packet p = f.mFrames.pollFirst();
+		mSize--;
+		f.mDeficit = f.mDeficit - p.size();
+		if(f.mFrames.isEmpty() && f.mActive) {
+			mActive[f.mAc].remove(f);
+			f.mActive = false;
+		}
+		dropIfIdle(f);
+		// Someone may be waiting in put() for room
+		for(int i = 0; i < mWaiters.size(); i++)
+			LockSupport.unpark(mWaiters.get(i));
+		return p;
+	}
+
+	/**
+	 * Takes a flow out of the round until the given time
+	 * @param f The flow
+	 * @param until Clock time it can send again
+	 */
+	private void park(Flow f, long until) {
+		if(f.mActive) {
+			mActive[f.mAc].remove(f);
+			f.mActive = false;
+		}
+		if(f.mParkedUntil == 0)
+			mParked.add(f);
+		f.mParkedUntil = Math.max(until, 1L);
+	}
+
+	/**
+	 * Puts parked flows whose time is up back in the round
+	 * @param now The current clock time
+	 */
+	private void unparkDue(long now) {
+		for(int i = mParked.size() - 1; i >= 0; i--) {
+			Flow f = mParked.get(i);
+			if(f.mParkedUntil <= now) {
+				mParked.remove(i);
+				f.mParkedUntil = 0;
+				if(!f.mFrames.isEmpty()) {
+					f.mActive = true;
+					mActive[f.mAc].addLast(f);
+				} else {
+					dropIfIdle(f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * One destination's queue in one access category, and its standing in
+	 * the round
+	 */
+	private static class Flow {
+		private int mAc;
+		private int mKey; // What it's filed under in the table
+		private ArrayDeque<Packet> mFrames = new ArrayDeque<Packet>();
+		private int mDeficit; // Bytes the flow may still send this round
+		private int mHeadTries; // Tries spent on a requeued head frame
+		private long mParkedUntil; // 0 unless the flow is parked
+		private boolean mActive; // True while in mActive
+	}
+
+	/**
+	 * Flows by key, in an open-addressing table with linear probing. Kept
+	 * at most half full, and grown by doubling. Removal shifts later 
+	 * entries back rather than leaving tombstones.
+	 */
+	private static class FlowTable {
+		private int[] mKeys;
+		private Flow[] mFlows; // Null where a slot is free
+		private int mMask;
+		private int mCount;
+
+		/**
+		 * @param size Slots to start with, a power of two
+		 */
+		private FlowTable(int size) {
+			mKeys = new int[size];
+			mFlows = new Flow[size];
+			mMask = size - 1;
+		}
+
+		/**
+		 * @param key A key
+		 * @return The flow filed under it, or null if there isn't one
+		 */
+		private Flow get(int key) {
+			for(int i = home(key); ; i = (i + 1) & mMask) {
+				Flow f = mFlows[i];
+				if(f == null || mKeys[i] == key)
+					return f;
+			}
+		}
+
+		/**
+		 * Files a flow under its key, which mustn't be in the table already
+		 * @param f The flow
+		 */
+		private void put(Flow f) {
+			if(2 * (mCount + 1) > mFlows.length)
+				grow();
+			int i = home(f.mKey);
+			while(mFlows[i] != null)
+				i = (i + 1) & mMask;
+			mKeys[i] = f.mKey;
+			mFlows[i] = f;
+			mCount++;
+		}
+
+		/**
+		 * Takes whatever flow is filed under a key out of the table
+		 * @param key The key
+		 */
+		private void remove(int key) {
+			int i = home(key);
+			while(mFlows[i] != null && mKeys[i] != key)
+				i = (i + 1) & mMask;
+			if(mFlows[i] == null)
+				return;
+			// Move back any later entry in the run that can't be found from
+			// its home slot once this one is free
+			int j = i;
+			while(true) {
+				j = (j + 1) & mMask;
+				if(mFlows[j] == null)
+					break;
+				int home = home(mKeys[j]);
+				// Entries whose home lies cyclically in (i, j] stay put
+				boolean stays = (i <= j) ? (i < home && home <= j)
+						: (i < home || home <= j);
+				if(!stays) {
+					mKeys[i] = mKeys[j];
+					mFlows[i] = mFlows[j];
+					i = j;
+				}
+			}
+			mFlows[i] = null;
+			mCount--;
+		}
+
+		/**
+		 * Doubles the table, filing every flow again
+		 */
+		private void grow() {
+			Flow[] old = mFlows;
+			mKeys = new int[old.length * 2];
+			mFlows = new Flow[old.length * 2];
+			mMask = mFlows.length - 1;
+			mCount = 0;
+			for(int i = 0; i < old.length; i++) {
+				if(old[i] != null)
+					put(old[i]);
+			}
+		}
+
+		/**
+		 * @param key A key
+		 * @return The slot it's looked for from first
+		 */
+		private int home(int key) {
+			int h = key * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mMask;
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package wifi;
+
+/**
+ * The frames a block ACK session has outstanding to one destination, oldest
+ * first. SendTask transmits them as a burst and feeds whatever ACKs come back
+ * in here, so only the frames nobody has acknowledged go out again. Each
+ * frame has its own retransmission timer, selective repeat style: a frame
+ * only goes out again once its timer runs out or an ACK shows it was lost.
+ */
+public class TxWindow {
+
+	// A block ACK bitmap only reaches this far back
+	public static final int MAX_SIZE = Scoreboard.WINDOW;
+
+	private Packet[] mFrames = new Packet[MAX_SIZE];
+	private int[] mTries = new int[MAX_SIZE];
+	private boolean[] mAcked = new boolean[MAX_SIZE];
+	// Clock time each frame's retransmission timer runs out
+	private long[] mDueAt = new long[MAX_SIZE];
+	private int mCount;
+	private short mDest;
+	// While the window sits out a backoff, the time it can go again
+	private long mParkedUntil;
+
+	/**
+	 * @return Number of frames outstanding
+	 */
+	public int size() {
+		return mCount;
+	}
+
+	/**
+	 * @return True if nothing is outstanding
+	 */
+	public boolean isEmpty() {
+		return mCount == 0;
+	}
+
+	/**
+	 * @return The destination the window's frames are going to
+	 */
+	public short getDest() {
+		return mDest;
+	}
+
+	/**
+	 * @param i Index into the window, oldest frame first
+	 * @return The frame
+	 */
+	public Packet get(int i) {
+		return mFrames[i];
+	}
+
+	/**
+	 * @param i Index into the window
+	 * @return Number of times the frame has been transmitted
+	 */
+	public int getTries(int i) {
+		return mTries[i];
+	}
+
+	/**
+	 * @param i Index into the window
+	 * @return True if an ACK has covered the frame
+	 */
+	public boolean isAcked(int i) {
+		return mAcked[i];
+	}
+
+	/**
+	 * @param i Index into the window
+	 * @param now The current clock time
+	 * @return True if the frame is waiting to go out, for the first time or
+	 *         because its timer ran out
+	 */
+	public boolean isDue(int i, long now) {
+		return !mAcked[i] && now >= mDueAt[i];
+	}
+
+	/**
+	 * @param now The current clock time
+	 * @return True if any frame is waiting to go out
+	 */
+	public boolean hasDue(long now) {
+		for(int i = 0; i < mCount; i++) {
+			if(isDue(i, now))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return When the first retransmission timer runs out, or Long.MAX_VALUE
+	 *         if nothing is outstanding
+	 */
+	public long nextDue() {
+		long next = Long.MAX_VALUE;
+		for(int i = 0; i < mCount; i++) {
+			if(!mAcked[i])
+				next = Math.min(next, mDueAt[i]);
+		}
+		return next;
+	}
+
+	/**
+	 * Makes every frame that hasn't been acknowledged due right away, e.g.
+	 * once a block ACK shows which ones were lost
+	 */
+	public void expireAll() {
+		for(int i = 0; i < mCount; i++)
+			mDueAt[i] = 0L;
+	}
+
+	/**
+	 * @return Clock time the window can send again after a backoff
+	 */
+	public long getParkedUntil() {
+		return mParkedUntil;
+	}
+
+	/**
+	 * @param until Clock time the window can send again
+	 */
+	public void setParkedUntil(long until) {
+		mParkedUntil = until;
+	}
+
+	/**
+	 * Checks whether a frame could join the window and still be covered by
+	 * the same block ACK bitmap as the oldest outstanding frame
+	 * @param seq The new frame's sequence number
+	 * @return True if there's room for it
+	 */
+	public boolean canAdd(int seq) {
+		if(mCount == MAX_SIZE)
+			return false;
+		return mCount == 0 ||
+			Scoreboard.seqDiff(seq, mFrames[0].getSequenceNumber()) < MAX_SIZE;
+	}
+
+	/**
+	 * Adds a frame, with its sequence number already set, to the window
+	 * @param p The frame
+	 */
+	public void add(Packet p) {
+		mDest = p.getDestAddr();
+		mFrames[mCount] = p;
+		mTries[mCount] = 0;
+		mAcked[mCount] = false;
+		mDueAt[mCount] = 0L;
+		mCount++;
+	}
+
+	/**
+	 * Notes that a frame has been transmitted and starts its timer
+	 * @param i Index into the window
+	 * @param dueAt Clock time to send it again if no ACK has covered it
+	 */
+	public void onTransmit(int i, long dueAt) {
+		mTries[i]++;
+		mDueAt[i] = dueAt;
+	}
+
+	/**
+	 * Takes back a transmission the receiver refused, so it doesn't count
+	 * against the frame's retry limit
+	 * @param i Index into the window
+	 */
+	public void refund(int i) {
+		if(mTries[i] > 0)
+			mTries[i]--;
+	}
+
+	/**
+	 * Uses up whatever tries a frame has left, so it's given up on when the
+	 * window is next retired
+	 * @param i Index into the window
+	 * @param maxTries The retry limit
+	 */
+	public void exhaust(int i, int maxTries) {
+		mTries[i] = Math.max(mTries[i], maxTries);
+	}
+
+	/**
+	 * Marks every frame our destination has acknowledged, by block ACK or 
+	 * plain ACK
+	 * @param table Where the ACKs we've received are recorded
+	 */
+	public void applyAcks(AckTable table) {
+		for(int i = 0; i < mCount; i++) {
+			if(table.isAcked(mDest, mFrames[i].getSequenceNumber()))
+				mAcked[i] = true;
+		}
+	}
+
+	/**
+	 * Removes a frame from the window, keeping the rest in order
+	 * @param i Index into the window
+	 * @return The removed frame
+	 */
+	public Packet remove(int i) {
+		Packet p = mFrames[i];
+		int tail = mCount - i - 1;
+		System.arraycopy(mFrames, i + 1, mFrames, i, tail);
+		System.arraycopy(mTries, i + 1, mTries, i, tail);
+		System.arraycopy(mAcked, i + 1, mAcked, i, tail);
+		System.arraycopy(mDueAt, i + 1, mDueAt, i, tail);
+		mCount--;
+		mFrames[mCount] = null;
+		return p;
+	}
+}
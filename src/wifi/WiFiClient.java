@@ -333,7 +333,7 @@ public class WiFiClient implements ActionListener, Runnable {
     */
    public void run() { 
       buildGUI();
-      (new Thread(new StreamWatcher(this))).start();
+      TaskThreads.newThread(new StreamWatcher(this), "StreamWatcher").start();
    }
 
 